@@ -5,9 +5,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.scene.control.Alert;
@@ -22,6 +21,10 @@ import org.apache.commons.csv.CSVRecord;
  * This class is used for the exact reading of CSV files with the help
  * of the Apache Commons CSV library, the data of which should then be 
  * interpreted by a Parser class for use in the program.
+ * <p>
+ * The header row is read when the file is opened, the other rows are then
+ * handed one at a time to a {@link RowVisitor RowVisitor} as the parser
+ * reaches them, so the file is never held in memory.
  *
  * @author James Conway
  * @since 2018-07-17
@@ -30,17 +33,22 @@ public class CsvReader {
 
     private File csvFile;
     private BufferedReader reader;
+    private CSVParser csvParser;
+    private Iterator<CSVRecord> records;
+
+    private HashMap<String, Integer> headerToIndex;
+    private HashMap<Integer, String> indexToHeader;
 
     /**
-     * ArrayList containing cells ArrayLists.
-     * <p>
-     * I.e: [[cell, cell, cell], [cell, cell, cell], ...]
+     * Receives the rows after the header one at a time.
      */
-    private ArrayList<ArrayList> rows;
+    public interface RowVisitor {
 
-    private ArrayList<String> cells;
-    private HashMap<String, Integer> headerToIndex;
-    private HashMap<Integer, String> indexToHeader;
+        /**
+         * @param row The cell values of the row.
+         */
+        void visitRow(CSVRecord row);
+    }
 
     /**
      * @param csvFile The file to be read.
@@ -50,40 +58,29 @@ public class CsvReader {
     }
 
     /**
-     * Iterate through the contents of the CSV file and collect its data.
+     * Open the CSV file and read its header row.
      * <p>
-     * While the method iterates through the file, it populates the rows 
-     * ArrayList, and the headerToIndex and indexToHeader HashMaps.
+     * Populates the headerToIndex and indexToHeader HashMaps, which are left
+     * empty if the file has no rows.
      */
-    public void read() {
+    public void open() {
+        headerToIndex = new HashMap<>();
+        indexToHeader = new HashMap<>();
         try {
             // Open the reader for the file and create a csvParser for it
             reader = new BufferedReader(new FileReader(csvFile));
-            CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT
+            csvParser = new CSVParser(reader, CSVFormat.DEFAULT
                     .withDelimiter(',')
                     .withTrim());
-
-            headerToIndex = new HashMap<>();
-            indexToHeader = new HashMap<>();
-            List<CSVRecord> csvRows = csvParser.getRecords();
+            records = csvParser.iterator();
 
             // Iterate throught the first row and get the mappings for the headers
-            CSVRecord header = csvRows.get(0);
-            for (int i = 0; i <= header.size() - 1; i++) {
-                headerToIndex.put(header.get(i), i);
-                indexToHeader.put(i, header.get(i));
-            }
-
-            rows = new ArrayList<>();
-            // Iterate through the rows after the header to retrieve the cell values
-            for (int i = 1; i < csvRows.size(); i++) {
-                // Put the cell values for this row into an arrayList
-                cells = new ArrayList<>();
-                for (String cell : csvRows.get(i)) {
-                    cells.add(cell);
+            if (records.hasNext()) {
+                CSVRecord header = records.next();
+                for (int i = 0; i <= header.size() - 1; i++) {
+                    headerToIndex.put(header.get(i), i);
+                    indexToHeader.put(i, header.get(i));
                 }
-                // Put the arrayList for the cell values into an arrayList for the rows
-                rows.add(cells);
             }
         } catch (FileNotFoundException ex) {
             Alert alert = new Alert(Alert.AlertType.ERROR, "FileNotFoundException: " + ex.getLocalizedMessage(), ButtonType.OK);
@@ -96,6 +93,44 @@ public class CsvReader {
         }
     }
 
+    /**
+     * Iterate through the rows after the header and hand each of them to the
+     * visitor, then close the file.
+     *
+     * @param visitor Receives every row after the header.
+     */
+    public void forEachRow(RowVisitor visitor) {
+        if (records == null) {
+            return;
+        }
+        try {
+            while (records.hasNext()) {
+                visitor.visitRow(records.next());
+            }
+        } catch (IllegalStateException ex) {
+            // The CSVParser iterator wraps the IOExceptions of the reader
+            Alert alert = new Alert(Alert.AlertType.ERROR, "IOException: " + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+            Logger.getLogger(CsvReader.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Close the CSV file.
+     */
+    public void close() {
+        try {
+            if (csvParser != null) {
+                csvParser.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CsvReader.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        records = null;
+    }
+
     public HashMap<String, Integer> getHeaderToIndex() {
         return headerToIndex;
     }
@@ -103,8 +138,4 @@ public class CsvReader {
     public HashMap<Integer, String> getIndexToHeader() {
         return indexToHeader;
     }
-
-    public ArrayList<ArrayList> getRows() {
-        return rows;
-    }
-}
\ No newline at end of file
+}
@@ -1,8 +1,14 @@
 package CsvParsing;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.csv.CSVRecord;
 
 /**
  * <h1>CSV Data Dictionary parser.</h1>
@@ -31,117 +37,204 @@ public class DataDictionaryParser {
      */
     private HashMap<String, String> variableToDefault;
 
+    // The state of the parse between two rows
+    private int formIndex, variableIndex, typeIndex, choiceIndex, defaultIndex;
+    private String previousForm;
+
     /**
-     * Get the Data Dictionary file and read it with a CsvReader object.
+     * Get the Data Dictionary file and create a CsvReader object for it, the
+     * file is read when it is parsed.
      * @param dataDictionaryFile The file to be read and parsed.
      */
     public DataDictionaryParser(File dataDictionaryFile) {
         this.dataDictionaryFile = dataDictionaryFile;
         reader = new CsvReader(dataDictionaryFile);
-        reader.read();
     }
 
     /**
-     * Iterate through the rows of the read CSV file and parse its data.
+     * Iterate through the rows of the CSV file as they are read and parse its
+     * data in a single pass.
+     * <p>
+     * The columns are looked up once from the header row. Then for every row,
+     * put the item in the form column into the forms ArrayList if it is a new
+     * form, and the item in the variable column into the variables ArrayList
+     * and formToVariables and variableToDefault HashMaps.
      * <p>
-     * First iterate through the row items in the form column and put them into
-     * the forms ArrayList, then iterate through the items in the variable 
-     * column and put them into the variables ArrayList and formToVariables and
-     * variableToDefault HashMaps.
+     * If a file with the same contents has been parsed before, its data is
+     * loaded from the {@link ParseCache ParseCache} instead.
      * @throws Exception In case this file is not a valid Data Dictionary.
      */
     public void parse() throws Exception {
-        HashMap<String, Integer> headerToIndex = reader.getHeaderToIndex();
-        System.out.println(headerToIndex);
-        int keyCheck = 0;
-        String variableFieldNameKey = null;
-        for(String key : headerToIndex.keySet()){
-        	if(key.contains("Form Name") || key.contains("Variable / Field Name")
-        		|| key.contains("Field Type") || key.contains("Choices, Calculations, OR Slider Labels")
-        		|| key.contains("Field Annotation")){
-        		keyCheck++;
-        	}
-        	if(key.contains("Variable / Field Name")){
-        		variableFieldNameKey = key;
-        		System.out.println("Variable / Field Name key: " + variableFieldNameKey);
-        	}
+        ParseCache cache = new ParseCache("dictionary", dataDictionaryFile);
+        if (loadCache(cache.load())) {
+            return;
         }
-        if(keyCheck < 5){
-        	throw new Exception("Chosen Data Dictionary is not valid, lacks all necessary headers.");
+
+        reader.open();
+        HashMap<String, Integer> headerToIndex = reader.getHeaderToIndex();
+        formIndex = findColumn(headerToIndex, "Form Name");
+        variableIndex = findColumn(headerToIndex, "Variable / Field Name");
+        typeIndex = findColumn(headerToIndex, "Field Type");
+        choiceIndex = findColumn(headerToIndex, "Choices, Calculations, OR Slider Labels");
+        defaultIndex = findColumn(headerToIndex, "Field Annotation");
+        if (formIndex < 0 || variableIndex < 0 || typeIndex < 0 || choiceIndex < 0 || defaultIndex < 0) {
+            reader.close();
+            throw new Exception("Chosen Data Dictionary is not valid, lacks all necessary headers.");
         }
-//        if (headerToIndex.get("Form Name") == null || headerToIndex.get("﻿\"Variable / Field Name\"") == null
-//                || headerToIndex.get("Field Type") == null || headerToIndex.get("Choices, Calculations, OR Slider Labels") == null
-//                || headerToIndex.get("Field Annotation") == null) {
-//            throw new Exception("Chosen Data Dictionary is not valid.");
-//        }
-        
-        ArrayList<String> row;
+
         variables = new ArrayList<>();
         forms = new ArrayList<>();
         formToVariables = new HashMap<>();
         variableToDefault = new HashMap<>();
-        String previousForm = "";
-        int formIndex = headerToIndex.get("Form Name");
-        int variableIndex = headerToIndex.get(variableFieldNameKey);
-        int typeIndex = headerToIndex.get("Field Type");
-        int choiceIndex = headerToIndex.get("Choices, Calculations, OR Slider Labels");
-        int defaultIndex = headerToIndex.get("Field Annotation");
-
-        // Parse form column 
-        for (int i = 0; i < reader.getRows().size(); i++) {
-            row = reader.getRows().get(i);
-            // If this is a new form then add it. Otherwise if it's a duplicate skip it
-            if (previousForm.isEmpty() || !previousForm.equals(row.get(formIndex))) {
-                previousForm = row.get(formIndex);
-                forms.add(row.get(formIndex));
-            }
+        previousForm = "";
+
+        reader.forEachRow(this::parseRow);
+
+        if (!previousForm.isEmpty()) {
+            formToVariables.put(previousForm, variables);
         }
+        cache.save(this::writeCache);
+    }
 
-        // Parse variable column
-        for (int i = 0; i < reader.getRows().size(); i++) {
-            row = reader.getRows().get(i);
-            // If this is the first form, or a new form
-            if (previousForm.isEmpty() || !previousForm.equals(row.get(formIndex))) {
-                // If we're done collecting variables for this form then add them
-                if (!previousForm.isEmpty()) {
-                    formToVariables.put(previousForm, variables);
-                }
-                previousForm = row.get(formIndex);
-                variables = new ArrayList<>();
+    /**
+     * @param in The cached data of this file, can be null.
+     * @return Whether the parsed data could be loaded from the cache.
+     */
+    private boolean loadCache(DataInputStream in) {
+        if (in == null) {
+            return false;
+        }
+        try {
+            forms = ParseCache.readStrings(in);
+            formToVariables = ParseCache.readListMap(in);
+            variableToDefault = ParseCache.readStringMap(in);
+        } catch (IOException ex) {
+            Logger.getLogger(DataDictionaryParser.class.getName()).log(Level.WARNING, null, ex);
+            return false;
+        }
+        // The variables are those of the last form, just like after parsing
+        variables = forms.isEmpty() ? new ArrayList<>() : formToVariables.get(forms.get(forms.size() - 1));
+        return true;
+    }
+
+    private void writeCache(DataOutputStream out) throws IOException {
+        ParseCache.writeStrings(out, forms);
+        ParseCache.writeListMap(out, formToVariables);
+        ParseCache.writeStringMap(out, variableToDefault);
+    }
+
+    /**
+     * Parse the form and variable columns of a single row.
+     * @param row The row of the CSV file.
+     */
+    private void parseRow(CSVRecord row) {
+        String form = row.get(formIndex);
+        String variable = row.get(variableIndex);
+        String type = row.get(typeIndex);
 
+        // If this is the first form, or a new form
+        if (previousForm.isEmpty() || !previousForm.equals(form)) {
+            // If we're done collecting variables for this form then add them
+            if (!previousForm.isEmpty()) {
+                formToVariables.put(previousForm, variables);
             }
-            // If the variable is of the Checkbox type then create as many variables
-            // as it has choices for
-            if (row.get(typeIndex).equals("checkbox")) {
-                // Count the number of times '|' appears in the Choices field to determine
-                // the number of variables
-                int count = row.get(choiceIndex).length() - row.get(choiceIndex).replace("|", "").length();
+            previousForm = form;
+            forms.add(form);
+            variables = new ArrayList<>();
+        }
+
+        // If the variable is of the Checkbox type then create as many variables
+        // as it has choices for
+        if (type.equals("checkbox")) {
+            // Count the number of times '|' appears in the Choices field to determine
+            // the number of variables
+            String choices = row.get(choiceIndex);
+            int count = 1;
+            for (int i = choices.indexOf('|'); i >= 0; i = choices.indexOf('|', i + 1)) {
                 count++;
-                for (int j = 0; j < count; j++) {
-                    variables.add(row.get(variableIndex) + "___" + (j + 1));
+            }
+            for (int j = 0; j < count; j++) {
+                variables.add(variable + "___" + (j + 1));
+            }
+        } // If the variable is of the dropdown type then check for default values
+        else if (type.equals("dropdown")) {
+            String defaultValue = findDefault(row.get(defaultIndex));
+            if (defaultValue != null) {
+                variableToDefault.put(variable, defaultValue);
+            }
+            variables.add(variable);
+        } // Otherwise, simply collect the variable
+        else {
+            variables.add(variable);
+        }
+    }
+
+    /**
+     * Find the index of a column from its header.
+     * <p>
+     * Headers are matched exactly first, otherwise a header containing the
+     * name is accepted, as the first header of a file exported by REDCap can
+     * start with a byte order mark or be wrapped in quotes.
+     * @param headerToIndex The headers of the CSV file.
+     * @param name The header to look for.
+     * @return The index of the column, -1 if there is none.
+     */
+    private static int findColumn(HashMap<String, Integer> headerToIndex, String name) {
+        Integer index = headerToIndex.get(name);
+        if (index != null) {
+            return index;
+        }
+        for (String header : headerToIndex.keySet()) {
+            if (header.contains(name)) {
+                return headerToIndex.get(header);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Scan a Field Annotation for the value of its @DEFAULT action tag.
+     * <p>
+     * The value can be in single or double quotes, I.e: @DEFAULT='1' or
+     * @DEFAULT = "1", or unquoted up to the next whitespace. Action tags can
+     * be separated by any whitespace, including line breaks. If the tag
+     * appears more than once the last one is used.
+     * @param annotation The Field Annotation of a variable.
+     * @return The default value, null if there is none.
+     */
+    private static String findDefault(String annotation) {
+        String defaultValue = null;
+        int length = annotation.length();
+        for (int i = annotation.indexOf("@DEFAULT"); i >= 0; i = annotation.indexOf("@DEFAULT", i + 1)) {
+            int j = i + "@DEFAULT".length();
+            while (j < length && Character.isWhitespace(annotation.charAt(j))) {
+                j++;
+            }
+            if (j == length || annotation.charAt(j) != '=') {
+                continue;
+            }
+            j++;
+            while (j < length && Character.isWhitespace(annotation.charAt(j))) {
+                j++;
+            }
+            if (j == length) {
+                continue;
+            }
+            char quote = annotation.charAt(j);
+            if (quote == '\'' || quote == '"') {
+                int end = annotation.indexOf(quote, j + 1);
+                if (end >= 0) {
+                    defaultValue = annotation.substring(j + 1, end);
                 }
-            } // If the variable is of the dropdown type then check for default values
-            else if (row.get(typeIndex).equals("dropdown")) {
-                String defaultValue = row.get(defaultIndex).trim();
-                // If it has a default value, then get it 
-                if(defaultValue.contains("@DEFAULT")){
-                    String[] temp = defaultValue.split(" ");
-                    for(String part : temp){
-                        if(part.startsWith("@DEFAULT")){
-                            defaultValue = part.split("'")[1];
-                        }
-                    }
-                    variableToDefault.put(row.get(variableIndex), defaultValue);
+            } else {
+                int end = j;
+                while (end < length && !Character.isWhitespace(annotation.charAt(end))) {
+                    end++;
                 }
-                variables.add(row.get(variableIndex));
-            } // Otherwise, simply collect the variable
-            else {
-                variables.add(row.get(variableIndex));
+                defaultValue = annotation.substring(j, end);
             }
         }
-        if (!previousForm.isEmpty()) {
-            formToVariables.put(previousForm, variables);
-        }
+        return defaultValue;
     }
 
     public ArrayList<String> getVariables() {
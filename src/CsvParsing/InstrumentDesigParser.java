@@ -1,8 +1,14 @@
 package CsvParsing;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.csv.CSVRecord;
 
 /**
  * <h1>CSV Instrument Designation parser.</h1>
@@ -28,71 +34,145 @@ public class InstrumentDesigParser {
     private HashMap<String, ArrayList> eventToForm;
 
     /**
-     * Get the Instrument Designation file and read it with a CsvReader object.
+     * Dense ids of the events and of every distinct form, in the order they
+     * first appear in the file.
+     * <p>
+     * I.e: {event : id}, {form : id}
+     */
+    private HashMap<String, Integer> eventToId, formToId;
+    /**
+     * Whether each form is designated to each event.
+     * <p>
+     * I.e: eventFormMatrix[event id][form id]
+     */
+    private boolean[][] eventFormMatrix;
+
+    // The state of the parse between two rows
+    private int eventIndex, formIndex;
+    private String previousEvent;
+
+    /**
+     * Get the Instrument Designation file and create a CsvReader object for
+     * it, the file is read when it is parsed.
      * @param instrumentDesigFile The file to be read and parsed.
      */
     public InstrumentDesigParser(File instrumentDesigFile) {
         this.instrumentDesigFile = instrumentDesigFile;
         reader = new CsvReader(instrumentDesigFile);
-        reader.read();
     }
 
     /**
-     * Iterate through the rows of the read CSV file and parse its data.
+     * Iterate through the rows of the CSV file as they are read and parse its
+     * data.
+     * <p>
+     * For every row, put the item in the event column into the events
+     * ArrayList if it is a new event, and the item in the form column into the
+     * forms ArrayList and eventToForm HashMap.
      * <p>
-     * First iterate through the row items in the event column and put them into
-     * the events ArrayList, then iterate through the items in the form 
-     * column and put them into the forms ArrayList and eventToForm HashMap.
+     * If a file with the same contents has been parsed before, its data is
+     * loaded from the {@link ParseCache ParseCache} instead.
      * @throws Exception In case this file is not a valid Instrument Designation.
      */
     public void parse() throws Exception {
+        ParseCache cache = new ParseCache("instrument", instrumentDesigFile);
+        if (loadCache(cache.load())) {
+            return;
+        }
+
+        reader.open();
         HashMap<String, Integer> headerToIndex = reader.getHeaderToIndex();
         if (headerToIndex.get("unique_event_name") == null || headerToIndex.get("form") == null) {
+            reader.close();
             throw new Exception("Chosen Instrument Designation is not valid.");
         }
         else{
-            ArrayList<String> row;
             events = new ArrayList<>();
             forms = new ArrayList<>();
             eventToForm = new HashMap<>();
-            String currentEvent, currentForm, previousEvent = "";
-
-            // Parse event column 
-            for (int i = 0; i < reader.getRows().size(); i++) {
-                row = reader.getRows().get(i);
-                // If this is a new event then add it. Otherwise if it's a duplicate skip it
-                currentEvent = row.get(headerToIndex.get("unique_event_name"));
-                if (previousEvent.isEmpty() || !previousEvent.equals(currentEvent)) {
-                    previousEvent = currentEvent;
-                    events.add(currentEvent);
-                }
-            }
+            previousEvent = "";
+            eventIndex = headerToIndex.get("unique_event_name");
+            formIndex = headerToIndex.get("form");
 
-            // Parse form column
-            for (int i = 0; i < reader.getRows().size(); i++) {
-                row = reader.getRows().get(i);
-                currentEvent = row.get(headerToIndex.get("unique_event_name"));
-                currentForm = row.get(headerToIndex.get("form"));
-                // If this is the first event, or a new event
-                if (previousEvent.isEmpty() || !previousEvent.equals(currentEvent)) {
-                    // If this is a new event then add the previous event's forms to the
-                    // eventToForm HashMap
-                    if (!previousEvent.isEmpty()) {
-                        eventToForm.put(previousEvent, forms);
-                    }
-                    previousEvent = currentEvent;
-                    forms = new ArrayList<>();
-                    forms.add(currentForm);
-                } // If this event is the same as the last then just collect the form
-                else {
-                    forms.add(currentForm);
-                }
-            }
-            // The last event is always skipped in the for loop so add its form to the
+            reader.forEachRow(this::parseRow);
+
+            // The last event is always skipped in the row parsing so add its form to the
             // HashMap afterwards
             if (!previousEvent.isEmpty()) {
                 eventToForm.put(previousEvent, forms);
             }
+            buildMatrix();
+            cache.save(this::writeCache);
+        }
+    }
+
+    /**
+     * @param in The cached data of this file, can be null.
+     * @return Whether the parsed data could be loaded from the cache.
+     */
+    private boolean loadCache(DataInputStream in) {
+        if (in == null) {
+            return false;
+        }
+        try {
+            events = ParseCache.readStrings(in);
+            eventToForm = ParseCache.readListMap(in);
+        } catch (IOException ex) {
+            Logger.getLogger(InstrumentDesigParser.class.getName()).log(Level.WARNING, null, ex);
+            return false;
+        }
+        // The forms are those of the last event, just like after parsing
+        forms = events.isEmpty() ? new ArrayList<>() : eventToForm.get(events.get(events.size() - 1));
+        buildMatrix();
+        return true;
+    }
+
+    private void writeCache(DataOutputStream out) throws IOException {
+        ParseCache.writeStrings(out, events);
+        ParseCache.writeListMap(out, eventToForm);
+    }
+
+    /**
+     * Parse the event and form columns of a single row.
+     * @param row The row of the CSV file.
+     */
+    private void parseRow(CSVRecord row) {
+        String currentEvent = row.get(eventIndex);
+        String currentForm = row.get(formIndex);
+        // If this is the first event, or a new event
+        if (previousEvent.isEmpty() || !previousEvent.equals(currentEvent)) {
+            // If this is a new event then add the previous event's forms to the
+            // eventToForm HashMap
+            if (!previousEvent.isEmpty()) {
+                eventToForm.put(previousEvent, forms);
+            }
+            previousEvent = currentEvent;
+            events.add(currentEvent);
+            forms = new ArrayList<>();
+            forms.add(currentForm);
+        } // If this event is the same as the last then just collect the form
+        else {
+            forms.add(currentForm);
+        }
+    }
+
+    /**
+     * Give the events and forms their dense ids and fill the eventFormMatrix
+     * from the eventToForm HashMap.
+     */
+    private void buildMatrix() {
+        eventToId = new HashMap<>();
+        formToId = new HashMap<>();
+        for (String event : events) {
+            eventToId.putIfAbsent(event, eventToId.size());
+            for (Object form : eventToForm.get(event)) {
+                formToId.putIfAbsent((String) form, formToId.size());
+            }
+        }
+        eventFormMatrix = new boolean[eventToId.size()][formToId.size()];
+        for (String event : events) {
+            for (Object form : eventToForm.get(event)) {
+                eventFormMatrix[eventToId.get(event)][formToId.get((String) form)] = true;
+            }
         }
     }
 
@@ -108,6 +188,32 @@ public class InstrumentDesigParser {
         return eventToForm;
     }
 
+    /**
+     * @param event A unique event name.
+     * @return The dense id of the event, -1 if it isn't in the file.
+     */
+    public int getEventId(String event) {
+        Integer id = eventToId.get(event);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @param form A form name.
+     * @return The dense id of the form, -1 if it isn't in the file.
+     */
+    public int getFormId(String form) {
+        Integer id = formToId.get(form);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return Whether each form is designated to each event, I.e:
+     * matrix[{@link #getEventId event id}][{@link #getFormId form id}]
+     */
+    public boolean[][] getEventFormMatrix() {
+        return eventFormMatrix;
+    }
+
     public File getFile() {
         return instrumentDesigFile;
     }
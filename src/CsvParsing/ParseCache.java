@@ -0,0 +1,294 @@
+package CsvParsing;
+
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <h1>On disk cache of parsed CSV files.</h1>
+ * <p>
+ * The same Data Dictionary and Instrument Designation are usually converted
+ * with many Excel files, so once a Parser has parsed a CSV file its data is
+ * written to a small binary file in the cache directory, named after the
+ * SHA-256 hash of the CSV file's contents. The next time a file with the same
+ * contents is parsed, wherever it is, the data is read back in a single read
+ * instead.
+ * <p>
+ * The cache is only an optimisation, so any problem reading or writing it is
+ * logged and the CSV file is simply parsed again.
+ * <p>
+ * Cache files that haven't been used for {@link #MAX_AGE MAX_AGE} are deleted,
+ * and so are the least recently used ones once all of them take up more than
+ * {@link #MAX_TOTAL_SIZE MAX_TOTAL_SIZE}. The cache is disabled by starting
+ * the application with the {@link #ENABLED_PROPERTY ENABLED_PROPERTY} system
+ * property set to false, I.e: java -Dxlsx-to-odm-xml.cache=false -jar
+ * XlsxToOdmXml.jar, or with {@link #setEnabled setEnabled}, and all of it can
+ * be deleted with {@link #clear clear}.
+ *
+ * @author James Conway
+ * @since 2018-07-17
+ */
+public final class ParseCache {
+
+    /**
+     * Written at the start of every cache file, changed whenever the format
+     * of the cached data or the parsing itself changes.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Cache files that haven't been written or loaded for this long are
+     * deleted.
+     */
+    static final long MAX_AGE = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * Once all the cache files take up more than this, the least recently
+     * used ones are deleted.
+     */
+    static final long MAX_TOTAL_SIZE = 64L << 20;
+
+    /**
+     * The system property that disables the cache when set to false.
+     */
+    static final String ENABLED_PROPERTY = "xlsx-to-odm-xml.cache";
+
+    static final File DEFAULT_DIRECTORY = new File(System.getProperty("user.home"), ".xlsx-to-odm-xml" + File.separator + "cache");
+
+    private static File directory = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true")) ? DEFAULT_DIRECTORY : null;
+
+    /**
+     * Writes the parsed data of a Parser to a cache file.
+     */
+    interface Writer {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private File cacheFile;
+
+    /**
+     * Hash the contents of a CSV file to find its cache file.
+     *
+     * @param kind The kind of file, I.e: "dictionary".
+     * @param csvFile The CSV file to be parsed.
+     */
+    ParseCache(String kind, File csvFile) {
+        if (directory == null) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(csvFile)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] chunk = new byte[1 << 16];
+            for (int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+                digest.update(chunk, 0, read);
+            }
+            StringBuilder name = new StringBuilder(kind).append('-');
+            for (byte b : digest.digest()) {
+                name.append(String.format("%02x", b));
+            }
+            cacheFile = new File(directory, name.append(".bin").toString());
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            Logger.getLogger(ParseCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * @return The cached data, null if there is none.
+     */
+    DataInputStream load() {
+        if (cacheFile == null || !cacheFile.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(cacheFile.toPath())));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            // The age of a cache file counts from when it was last used
+            cacheFile.setLastModified(System.currentTimeMillis());
+            return in;
+        } catch (IOException ex) {
+            Logger.getLogger(ParseCache.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Write the parsed data to the cache file. The data is written to a
+     * temporary file first and then moved in place, so that a half written
+     * cache file is never read.
+     *
+     * @param writer Writes the parsed data.
+     */
+    void save(Writer writer) {
+        if (cacheFile == null) {
+            return;
+        }
+        File temporaryFile = null;
+        try {
+            directory.mkdirs();
+            temporaryFile = File.createTempFile("parse", ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+                out.writeInt(FORMAT_VERSION);
+                writer.write(out);
+            }
+            Files.move(temporaryFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            evict(cacheFile);
+        } catch (IOException ex) {
+            Logger.getLogger(ParseCache.class.getName()).log(Level.WARNING, null, ex);
+            if (temporaryFile != null) {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete the cache files that haven't been used for
+     * {@link #MAX_AGE MAX_AGE}, then the least recently used ones until the
+     * rest fit in {@link #MAX_TOTAL_SIZE MAX_TOTAL_SIZE}. Temporary files left
+     * behind by a failed save are deleted once they are as old.
+     *
+     * @param keep The cache file just written, which is never deleted.
+     */
+    private static void evict(File keep) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".bin") || name.endsWith(".tmp"));
+        if (files == null) {
+            return;
+        }
+        // Most recently used first
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        long now = System.currentTimeMillis();
+        long totalSize = keep.length();
+        for (File file : files) {
+            if (file.equals(keep)) {
+                continue;
+            }
+            boolean expired = now - file.lastModified() > MAX_AGE;
+            if (file.getName().endsWith(".tmp")) {
+                if (expired) {
+                    file.delete();
+                }
+            } else if (expired || totalSize + file.length() > MAX_TOTAL_SIZE) {
+                file.delete();
+            } else {
+                totalSize += file.length();
+            }
+        }
+    }
+
+    /**
+     * Turn the cache of the CSV files parsed from then on on or off. It is on
+     * unless the application was started with -Dxlsx-to-odm-xml.cache=false.
+     *
+     * @param enabled Whether the parsed data should be kept in, and loaded
+     * from, cache files under ~/.xlsx-to-odm-xml/cache.
+     */
+    public static void setEnabled(boolean enabled) {
+        setDirectory(enabled ? DEFAULT_DIRECTORY : null);
+    }
+
+    /**
+     * Delete every cache file, even when the cache is disabled.
+     *
+     * @return Whether all of them could be deleted.
+     */
+    public static boolean clear() {
+        File[] files = (directory != null ? directory : DEFAULT_DIRECTORY).listFiles((dir, name) -> name.endsWith(".bin") || name.endsWith(".tmp"));
+        boolean cleared = true;
+        for (int i = 0; files != null && i < files.length; i++) {
+            cleared &= files[i].delete();
+        }
+        return cleared;
+    }
+
+    /**
+     * @param directory The directory to keep the cache files in, null to
+     * disable the cache.
+     */
+    static void setDirectory(File directory) {
+        ParseCache.directory = directory;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        // writeUTF is limited to 64KB, which a Field Annotation could exceed
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    static ArrayList<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        ArrayList<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    static void writeListMap(DataOutputStream out, HashMap<String, ArrayList> map) throws IOException {
+        out.writeInt(map.size());
+        for (String key : map.keySet()) {
+            writeString(out, key);
+            writeStrings(out, map.get(key));
+        }
+    }
+
+    static HashMap<String, ArrayList> readListMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        HashMap<String, ArrayList> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readStrings(in));
+        }
+        return map;
+    }
+
+    static void writeStringMap(DataOutputStream out, HashMap<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (String key : map.keySet()) {
+            writeString(out, key);
+            writeString(out, map.get(key));
+        }
+    }
+
+    static HashMap<String, String> readStringMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        HashMap<String, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+}
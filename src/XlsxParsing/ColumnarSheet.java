@@ -0,0 +1,366 @@
+package XlsxParsing;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <h1>Columnar storage of a read XLSX sheet.</h1>
+ * <p>
+ * Instead of keeping every row as an ArrayList of Strings, each column of the
+ * sheet stores its distinct values once in a dictionary and every cell as an
+ * int code into it. Most cells of an export repeat a handful of values (codes,
+ * dates, visit names), so this keeps a single copy of each of them and lets
+ * the parser walk a column through a contiguous int array.
+ * <p>
+ * Code 0 always stands for an empty (null) cell. The length of every row is
+ * also kept, as rows read from the XLSX file can be shorter than the header.
+ * <p>
+ * The rows are also indexed by the patientID in their first column while they
+ * are added, so the rows of a patient can be found without scanning the whole
+ * sheet. The header row is never part of the index.
+ * <p>
+ * A sheet can be read with a projection, in which case only the header row
+ * and the projected columns of the other rows hold values. An empty
+ * projection only reads the header row.
+ *
+ * @author James Conway
+ * @since 2018-07-18
+ */
+public class ColumnarSheet {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int rowCount;
+    private int[] rowLengths;
+    private ArrayList<Column> columns;
+
+    /**
+     * The first and last row of every patientID, indexed by its code in the
+     * first column. Row 0 is the header, so 0 stands for no row.
+     */
+    private int[] firstRow, lastRow;
+    /**
+     * The next row with the same patientID as each row, 0 if there is none.
+     */
+    private int[] nextRow;
+    /**
+     * The columns that were read below the header row, null for all of them.
+     */
+    private BitSet projection;
+
+    /**
+     * A single column of the sheet.
+     */
+    private static class Column {
+
+        /**
+         * Maps the values of the column to their codes while the sheet is
+         * being built.
+         * <p>
+         * I.e: {value : code}
+         */
+        private HashMap<String, Integer> dictionary = new HashMap<>();
+        /**
+         * The values of the column, value i has the code i + 1.
+         */
+        private ArrayList<String> values = new ArrayList<>();
+        private String[] valueArray;
+        private int[] codes = new int[INITIAL_CAPACITY];
+
+        private void set(int row, String value) {
+            // Empty cells are code 0, so the codes only have to reach the last value
+            if (value == null) {
+                return;
+            }
+            if (row >= codes.length) {
+                codes = Arrays.copyOf(codes, Math.max(codes.length * 2, row + 1));
+            }
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                values.add(value);
+                code = values.size();
+                dictionary.put(value, code);
+            }
+            codes[row] = code;
+        }
+
+        private String get(int row) {
+            if (row >= codes.length || codes[row] == 0) {
+                return null;
+            }
+            return valueArray != null ? valueArray[codes[row] - 1] : values.get(codes[row] - 1);
+        }
+
+        private void trim(int rowCount, boolean keepDictionary) {
+            codes = Arrays.copyOf(codes, Math.min(codes.length, rowCount));
+            valueArray = values.toArray(new String[values.size()]);
+            values = null;
+            if (!keepDictionary) {
+                dictionary = null;
+            }
+        }
+    }
+
+    ColumnarSheet() {
+        rowLengths = new int[INITIAL_CAPACITY];
+        nextRow = new int[INITIAL_CAPACITY];
+        firstRow = new int[INITIAL_CAPACITY];
+        lastRow = new int[INITIAL_CAPACITY];
+        columns = new ArrayList<>();
+    }
+
+    /**
+     * Append a row to the sheet.
+     *
+     * @param cells The cell values of the row, null for empty cells.
+     */
+    void addRow(List<String> cells) {
+        if (rowCount == rowLengths.length) {
+            rowLengths = Arrays.copyOf(rowLengths, rowLengths.length * 2);
+            nextRow = Arrays.copyOf(nextRow, nextRow.length * 2);
+        }
+        while (columns.size() < cells.size()) {
+            columns.add(new Column());
+        }
+        for (int i = 0; i < cells.size(); i++) {
+            columns.get(i).set(rowCount, cells.get(i));
+        }
+        rowLengths[rowCount] = cells.size();
+
+        if (!cells.isEmpty() && cells.get(0) != null) {
+            indexRow(rowCount, columns.get(0).codes[rowCount]);
+        }
+        rowCount++;
+    }
+
+    /**
+     * Chain a row to the previous row of the same patientID.
+     *
+     * @param row The index of the row.
+     * @param code The code of the row's patientID in the first column.
+     */
+    private void indexRow(int row, int code) {
+        // The header row is never part of the index
+        if (row == 0) {
+            return;
+        }
+        if (code >= firstRow.length) {
+            firstRow = Arrays.copyOf(firstRow, Math.max(firstRow.length * 2, code + 1));
+            lastRow = Arrays.copyOf(lastRow, firstRow.length);
+        }
+        if (firstRow[code] == 0) {
+            firstRow[code] = row;
+        } else {
+            nextRow[lastRow[code]] = row;
+        }
+        lastRow[code] = row;
+    }
+
+    /**
+     * Release the spare capacity and the build dictionaries once the sheet has
+     * been completely read.
+     */
+    void trim() {
+        rowLengths = Arrays.copyOf(rowLengths, rowCount);
+        nextRow = Arrays.copyOf(nextRow, rowCount);
+        lastRow = null;
+        for (int i = 0; i < columns.size(); i++) {
+            // The dictionary of the patientID column is kept for the row index
+            columns.get(i).trim(rowCount, i == 0);
+        }
+    }
+
+    /**
+     * Write the trimmed sheet to a {@link WorkbookSnapshot WorkbookSnapshot}.
+     * <p>
+     * I.e: projection, row count, row lengths, column count, then for every
+     * column its values and the codes of its rows.
+     *
+     * @param out The snapshot file.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        long[] words = projection != null ? projection.toLongArray() : new long[0];
+        out.writeInt(projection != null ? words.length : -1);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+        out.writeInt(rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            out.writeInt(rowLengths[i]);
+        }
+        out.writeInt(columns.size());
+        for (Column column : columns) {
+            out.writeInt(column.valueArray.length);
+            for (String value : column.valueArray) {
+                WorkbookSnapshot.writeString(out, value);
+            }
+            out.writeInt(column.codes.length);
+            for (int code : column.codes) {
+                out.writeInt(code);
+            }
+        }
+    }
+
+    /**
+     * Read a sheet written by {@link #writeTo writeTo}, and rebuild its
+     * patientID index.
+     *
+     * @param in The snapshot file, positioned at the sheet.
+     * @return The trimmed sheet.
+     */
+    static ColumnarSheet readFrom(ByteBuffer in) {
+        ColumnarSheet sheet = new ColumnarSheet();
+        int words = in.getInt();
+        if (words >= 0) {
+            long[] projection = new long[words];
+            in.asLongBuffer().get(projection);
+            in.position(in.position() + words * 8);
+            sheet.projection = BitSet.valueOf(projection);
+        }
+        sheet.rowCount = in.getInt();
+        sheet.rowLengths = readInts(in, sheet.rowCount);
+        sheet.nextRow = new int[sheet.rowCount];
+        int columnCount = in.getInt();
+        for (int i = 0; i < columnCount; i++) {
+            Column column = new Column();
+            column.values = null;
+            column.valueArray = new String[in.getInt()];
+            for (int j = 0; j < column.valueArray.length; j++) {
+                column.valueArray[j] = WorkbookSnapshot.readString(in);
+            }
+            column.codes = readInts(in, in.getInt());
+            if (i == 0) {
+                for (int j = 0; j < column.valueArray.length; j++) {
+                    column.dictionary.put(column.valueArray[j], j + 1);
+                }
+            } else {
+                column.dictionary = null;
+            }
+            sheet.columns.add(column);
+        }
+
+        if (columnCount > 0) {
+            int[] patientCodes = sheet.columns.get(0).codes;
+            for (int i = 0; i < patientCodes.length; i++) {
+                if (sheet.rowLengths[i] > 0 && patientCodes[i] != 0) {
+                    sheet.indexRow(i, patientCodes[i]);
+                }
+            }
+        }
+        sheet.lastRow = null;
+        return sheet;
+    }
+
+    private static int[] readInts(ByteBuffer in, int count) {
+        int[] ints = new int[count];
+        in.asIntBuffer().get(ints);
+        in.position(in.position() + count * 4);
+        return ints;
+    }
+
+    /**
+     * @param projection The columns that were read below the header row, null
+     * for all of them.
+     */
+    void setProjection(BitSet projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * @param columns Columns that are needed below the header row, null for
+     * all of them.
+     * @return Whether all of those columns were read.
+     */
+    boolean hasColumns(BitSet columns) {
+        if (columns != null && columns.isEmpty()) {
+            return true;
+        }
+        if (projection == null) {
+            return true;
+        }
+        if (columns == null || projection.isEmpty()) {
+            return false;
+        }
+        BitSet missing = (BitSet) columns.clone();
+        missing.andNot(projection);
+        return missing.isEmpty();
+    }
+
+    /**
+     * @return The number of rows of the sheet, including the header row.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @param row The index of the row.
+     * @return The number of cells the row was read with.
+     */
+    public int getRowLength(int row) {
+        return row < rowCount ? rowLengths[row] : 0;
+    }
+
+    /**
+     * @return The number of columns of the widest row of the sheet.
+     */
+    public int getColumnCount() {
+        return columns.size();
+    }
+
+    /**
+     * @param row The index of the row.
+     * @param column The index of the column.
+     * @return The value of the cell, null if it is empty.
+     */
+    public String getCell(int row, int column) {
+        if (row >= rowCount || column >= getRowLength(row)) {
+            return null;
+        }
+        return columns.get(column).get(row);
+    }
+
+    /**
+     * @param patientID The value of the first column to look for.
+     * @return The index of the first row after the header with this patientID,
+     * -1 if there is none.
+     */
+    public int firstRowOf(String patientID) {
+        if (columns.isEmpty() || patientID == null) {
+            return -1;
+        }
+        Integer code = columns.get(0).dictionary.get(patientID);
+        if (code == null || code >= firstRow.length || firstRow[code] == 0) {
+            return -1;
+        }
+        return firstRow[code];
+    }
+
+    /**
+     * @param row The index of a row returned by {@link #firstRowOf firstRowOf}
+     * or by this method.
+     * @return The index of the next row with the same patientID, -1 if there
+     * is none.
+     */
+    public int nextRowOf(int row) {
+        return nextRow[row] == 0 ? -1 : nextRow[row];
+    }
+
+    /**
+     * @param row The index of the row.
+     * @return The cells of the row as an ArrayList, null for empty cells.
+     */
+    public ArrayList<String> getRow(int row) {
+        ArrayList<String> cells = new ArrayList<>();
+        for (int i = 0; i < getRowLength(row); i++) {
+            cells.add(getCell(row, i));
+        }
+        return cells;
+    }
+}
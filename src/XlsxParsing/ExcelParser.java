@@ -1,10 +1,16 @@
 package XlsxParsing;
 
 import Debugging.DebugReporter;
+import GUI.MainSceneController;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * <h1>XLSX Excel file parser.</h1>
@@ -18,11 +24,11 @@ import java.util.LinkedHashMap;
 public class ExcelParser {
 
     /**
-     * ArrayList containing fields ArrayLists.
+     * ArrayList containing the read sheets, stored column by column.
      * <p>
-     * I.e: [[field, field, field], [field, field, field], ...]
+     * I.e: [sheet, sheet, sheet]
      */
-    private ArrayList<ArrayList> sheets;
+    private ArrayList<ColumnarSheet> sheets;
 
     /**
      * Maps the sheets of the Excel to its fields.
@@ -46,23 +52,78 @@ public class ExcelParser {
     private LinkedHashMap<String, LinkedHashMap> patientToSheets;
 
     private File xlsxFile;
+    private XlsxReader reader;
     private HashMap<Integer, String> indexToSheet;
     private DebugReporter debugReporter;
 
     /**
-     * Get the Excel file and read it with an XlsxReader object, they get the
-     * necessary data from it.
+     * Number of worker threads patients are parsed with, 1 parses them
+     * sequentially.
+     */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Tests the patientIDs to parse, null to parse all of them.
+     */
+    private Predicate<String> patientFilter;
+
+    /**
+     * Get the Excel file and stream the headers of its sheets with an
+     * XlsxReader object, which is all that {@link #parseHeaders parseHeaders}
+     * needs. The rest of the sheets is only read once patient data is parsed.
+     * An unchanged file that has been read before is loaded whole from its
+     * snapshot instead, unless snapshots are {@link #setSnapshotsEnabled
+     * disabled}.
      *
      * @param xlsxFile The file to be read and parsed.
      */
     public ExcelParser(File xlsxFile) {
         this.xlsxFile = xlsxFile;
-        XlsxReader reader = new XlsxReader(xlsxFile);
-        reader.readWorkbook();
+        reader = new XlsxReader(xlsxFile, true);
+        reader.setParallel(true);
+        reader.setSnapshots(true);
+        reader.readHeaders();
         sheets = reader.getSheets();
         indexToSheet = reader.getIndexToSheet();
     }
 
+    /**
+     * Read the columns of the Excel file that belong to fields selected by
+     * the user, unless they have been read already. Only those columns are
+     * decoded, sheets without any selected field are left with their headers,
+     * and the patientIDs of the first sheet are always read.
+     *
+     * @param selectedSheets Contains the sheets selected by the user.
+     */
+    private void readSheets(LinkedHashMap<String, ArrayList> selectedSheets) {
+        HashMap<String, BitSet> sheetToColumns = new HashMap<>();
+        for (int j = 0; j < sheets.size(); j++) {
+            String sheet = indexToSheet.get(j);
+            if (j == 0 || selectedSheets.containsKey(sheet)) {
+                BitSet columns = new BitSet();
+                // The rows are found by the patientID in their first column
+                columns.set(0);
+                if (selectedSheets.containsKey(sheet)) {
+                    ArrayList selectedFields = selectedSheets.get(sheet);
+                    LinkedHashMap<Integer, String> indexToField = sheetToIndices.get(sheet);
+                    for (Integer index : indexToField.keySet()) {
+                        if (selectedFields.contains(indexToField.get(index))) {
+                            columns.set(index);
+                        }
+                    }
+                }
+                sheetToColumns.put(sheet, columns);
+            }
+        }
+
+        if (!reader.hasColumns(sheetToColumns) || !reader.hasRows(patientFilter)) {
+            reader.setRowFilter(patientFilter);
+            reader.readWorkbook(sheetToColumns);
+            sheets = reader.getSheets();
+            indexToSheet = reader.getIndexToSheet();
+        }
+    }
+
     /**
      * Iterate through the sheets of the read XLSX file and collect its fields.
      * <p>
@@ -81,14 +142,14 @@ public class ExcelParser {
         for (int i = 0; i < sheets.size(); i++) {
             fields = new ArrayList<>();
             indexToField = new LinkedHashMap<>();
-            ArrayList firstRow = (ArrayList) sheets.get(i).get(0);
+            ColumnarSheet sheet = sheets.get(i);
 
             // Iterate through the first row of each sheet
-            for (int j = 0; j < firstRow.size(); j++) {
+            for (int j = 0; j < sheet.getRowLength(0); j++) {
                 // If the field is not empty, add it to the ArrayList
-                if (firstRow.get(j) != null) {
-                    fields.add(firstRow.get(j).toString());
-                    indexToField.put(j, firstRow.get(j).toString());
+                if (sheet.getCell(0, j) != null) {
+                    fields.add(sheet.getCell(0, j));
+                    indexToField.put(j, sheet.getCell(0, j));
                 }
             }
 
@@ -111,71 +172,81 @@ public class ExcelParser {
      * @param selectedSheets Contains the sheets selected by the user.
      */
     public void parseRepeatingColumns(LinkedHashMap<String, ArrayList> selectedSheets) {
-        LinkedHashMap<String, LinkedHashMap> sheetToFieldToValue;
-        LinkedHashMap<String, String> fieldToValue;
-        ArrayList rows, cells;
-        ArrayList<String> patientIDs;
-
-        patientToSheets = new LinkedHashMap<>();
-
         debugReporter = new DebugReporter("PatientParser.txt");
+        readSheets(selectedSheets);
 
         // Collect all the patientID's
-        patientIDs = collectPatientIDs(sheets);
+        ArrayList<String> patientIDs = collectPatientIDs(sheets);
+        ColumnSelection[] selections = compileSelections(selectedSheets);
 
-        // Iterate through the patientIDs that were just collected
-        for (int i = 0; i < patientIDs.size(); i++) {
-            String patientID = patientIDs.get(i);
-            sheetToFieldToValue = new LinkedHashMap<>();
+        parsePatients(patientIDs, patientID -> parsePatientRepeatingColumns(patientID, selections));
 
-            debugReporter.writeLn(System.lineSeparator() + "Looking at patientID: " + patientID);
+        reportFinalData(patientToSheets);
+        debugReporter.close();
+    }
 
-            // Iterate through the sheets
-            for (int j = 0; j < sheets.size(); j++) {
-                String sheet = indexToSheet.get(j);
+    /**
+     * Collect the data of a single patient considering repeating column
+     * values.
+     * <p>
+     * Iterate through the Excel sheets, if the sheet was selected by a user
+     * then iterate through the rows of the sheet containing data for the
+     * patientID and parse them. Later rows overwrite the values of earlier
+     * ones.
+     *
+     * @param patientID The patientID to collect the data of.
+     * @param selections The compiled selection of every sheet.
+     * @return The patient's data, I.e. {sheet : {field : value}}
+     */
+    private LinkedHashMap<String, LinkedHashMap> parsePatientRepeatingColumns(String patientID, ColumnSelection[] selections) {
+        LinkedHashMap<String, LinkedHashMap> sheetToFieldToValue = new LinkedHashMap<>();
+        LinkedHashMap<String, String> fieldToValue;
+        ColumnarSheet rows;
 
-                // If this sheet has been selected on the GUI then consider the data in it
-                if (selectedSheets.containsKey(sheet)) {
-                    debugReporter.writeLn(System.lineSeparator() + "Looking at sheet: " + sheet);
+        if (MainSceneController.DEBUG) {
+            debugReporter.writeLn(System.lineSeparator() + "Looking at patientID: " + patientID);
+        }
 
-                    ArrayList selectedFields = selectedSheets.get(sheet);
-                    LinkedHashMap indexToField = sheetToIndices.get(sheet);
-                    rows = sheets.get(j);
+        // Iterate through the sheets
+        for (int j = 0; j < sheets.size(); j++) {
+            String sheet = indexToSheet.get(j);
 
-                    // Iterate through the rows of the current sheet
-                    for (int k = 1; k < rows.size(); k++) {
-                        cells = (ArrayList) rows.get(k);
+            // If this sheet has been selected on the GUI then consider the data in it
+            if (selections[j] != null) {
+                if (MainSceneController.DEBUG) {
+                    debugReporter.writeLn(System.lineSeparator() + "Looking at sheet: " + sheet);
+                }
 
-                        // If we find a row with data for this patientID
-                        if (cells.get(0) != null && cells.get(0).equals(patientID)) {
-                            debugReporter.writeLn("Looking at row: " + k);
+                BitSet selectedColumns = selections[j].columns;
+                String[] columnToField = selections[j].fields;
+                rows = sheets.get(j);
 
-                            fieldToValue = new LinkedHashMap<>();
+                // Iterate through the rows of the current sheet with data for this patientID
+                for (int k = rows.firstRowOf(patientID); k >= 0; k = rows.nextRowOf(k)) {
+                    if (MainSceneController.DEBUG) {
+                        debugReporter.writeLn("Looking at row: " + k);
+                    }
 
-                            // Iterate through the cells of the row
-                            for (int l = 0; l < cells.size(); l++) {
+                    fieldToValue = new LinkedHashMap<>();
+                    int rowLength = rows.getRowLength(k);
 
-                                // If this cell belongs to a field that has been selected on the GUI
-                            	if (indexToField.get(l) != null && selectedFields.contains(indexToField.get(l).toString()) && (cells.get(l) != null)) {
-                                    debugReporter.writeLn("Storing cell: " + cells.get(l).toString() + ", from field: " + indexToField.get(l).toString());
-                                    fieldToValue.put(indexToField.get(l).toString(), cells.get(l).toString());
-                                }
+                    // Iterate through the cells of the row that belong to a field selected on the GUI
+                    for (int l = selectedColumns.nextSetBit(0); l >= 0 && l < rowLength; l = selectedColumns.nextSetBit(l + 1)) {
+                        String cellValue = rows.getCell(k, l);
+                        if (cellValue != null) {
+                            if (MainSceneController.DEBUG) {
+                                debugReporter.writeLn("Storing cell: " + cellValue + ", from field: " + columnToField[l]);
                             }
-
-                            sheetToFieldToValue.put(sheet, fieldToValue);
+                            fieldToValue.put(columnToField[l], cellValue);
                         }
                     }
 
-                    // If data for this patientID is found in at least one sheet
-                    if (!sheetToFieldToValue.isEmpty()) {
-                        patientToSheets.put(patientID, sheetToFieldToValue);
-                    }
+                    sheetToFieldToValue.put(sheet, fieldToValue);
                 }
             }
         }
 
-        reportFinalData(patientToSheets);
-        debugReporter.close();
+        return sheetToFieldToValue;
     }
 
     /**
@@ -191,107 +262,244 @@ public class ExcelParser {
      * @param selectedSheets Contains the sheets selected by the user.
      */
     public void parseRepeatingRows(LinkedHashMap<String, ArrayList> selectedSheets) {
-        LinkedHashMap<String, LinkedHashMap> sheetToFieldToValue;
-        LinkedHashMap<String, ArrayList> fieldToValues;
-        ArrayList rows, cells;
-        ArrayList<String> patientIDs, values;
-
-        patientToSheets = new LinkedHashMap<>();
-
         debugReporter = new DebugReporter("PatientParser.txt");
+        readSheets(selectedSheets);
 
         // Collect all the patientID's 
-        patientIDs = collectPatientIDs(sheets);
+        ArrayList<String> patientIDs = collectPatientIDs(sheets);
+        ColumnSelection[] selections = compileSelections(selectedSheets);
 
-        // Iterate through the patientIDs that were just collected
-        for (int i = 0; i < patientIDs.size(); i++) {
-            String patientID = patientIDs.get(i);
-            sheetToFieldToValue = new LinkedHashMap<>();
+        parsePatients(patientIDs, patientID -> parsePatientRepeatingRows(patientID, selections));
+
+        reportFinalData(patientToSheets);
+        debugReporter.close();
+    }
 
+    /**
+     * Collect the data of a single patient considering repeating row values.
+     * <p>
+     * Iterate through the Excel sheets, if the sheet was selected by a user
+     * then iterate through the rows of the sheet containing data for the
+     * patientID and append their values to the values of each field.
+     *
+     * @param patientID The patientID to collect the data of.
+     * @param selections The compiled selection of every sheet.
+     * @return The patient's data, I.e. {sheet : {field : [value, value]}}
+     */
+    private LinkedHashMap<String, LinkedHashMap> parsePatientRepeatingRows(String patientID, ColumnSelection[] selections) {
+        LinkedHashMap<String, LinkedHashMap> sheetToFieldToValue = new LinkedHashMap<>();
+        LinkedHashMap<String, ArrayList> fieldToValues;
+        ColumnarSheet rows;
+        ArrayList<String> values;
+
+        if (MainSceneController.DEBUG) {
             debugReporter.writeLn(System.lineSeparator() + "Looking at patientID: " + patientID);
+        }
 
-            // Iterate through the sheets
-            for (int j = 0; j < sheets.size(); j++) {
-                String sheet = indexToSheet.get(j);
+        // Iterate through the sheets
+        for (int j = 0; j < sheets.size(); j++) {
+            String sheet = indexToSheet.get(j);
 
-                // If this sheet has been selected on the GUI then consider the data in it
-                if (selectedSheets.containsKey(sheet)) {
+            // If this sheet has been selected on the GUI then consider the data in it
+            if (selections[j] != null) {
+                if (MainSceneController.DEBUG) {
                     debugReporter.writeLn(System.lineSeparator() + "Looking at sheet: " + sheet);
+                }
 
-                    ArrayList selectedFields = selectedSheets.get(sheet);
-                    LinkedHashMap indexToField = sheetToIndices.get(sheet);
-                    rows = sheets.get(j);
-                    fieldToValues = new LinkedHashMap<>();
-
-                    // Iterate through the rows of the current sheet
-                    for (int k = 1; k < rows.size(); k++) {
-                        cells = (ArrayList) rows.get(k);
-
-                        // If we find a row with data for this patientID
-                        if (cells.get(0) != null && cells.get(0).equals(patientID)) {
-                            debugReporter.writeLn("Looking at row: " + k);
-
-                            // Iterate through the cells of the row
-                            for (int l = 0; l < cells.size(); l++) {
-
-                                // If this cell belongs to a field that has been selected on the GUI
-//                                if (indexToField.get(l) != null && selectedFields.contains(indexToField.get(l).toString()) && cells.get(l) != null) {
-                            	if (indexToField.get(l) != null && selectedFields.contains(indexToField.get(l).toString())) {
-                                    String cellValue;
-                                    if(cells.get(l) != null){
-                                    	cellValue = cells.get(l).toString();
-                                    }
-                                    else{
-                                    	cellValue = "";
-                                    }
-                                    
-                                    debugReporter.writeLn("Storing cell: " + cellValue + ", from field: " + indexToField.get(l).toString());
-                                    
-                                    // If this cell is for a new field then create a new values ArrayList for it
-                                    if (fieldToValues.get(indexToField.get(l).toString()) == null) {
-                                        values = new ArrayList<>();
-                                        values.add(cellValue);
-                                        fieldToValues.put(indexToField.get(l).toString(), values);
-                                    } // If this cell is for a field that has been checked before then add it to the values ArrayList
-                                    else {
-                                        values = fieldToValues.get(indexToField.get(l).toString());
-                                        values.add(cellValue);
-                                        fieldToValues.put(indexToField.get(l).toString(), values);
-                                    }
-                                }
-                            }
+                BitSet selectedColumns = selections[j].columns;
+                String[] columnToField = selections[j].fields;
+                rows = sheets.get(j);
+                fieldToValues = new LinkedHashMap<>();
 
-                            sheetToFieldToValue.put(sheet, fieldToValues);
-                        }
+                // Iterate through the rows of the current sheet with data for this patientID
+                for (int k = rows.firstRowOf(patientID); k >= 0; k = rows.nextRowOf(k)) {
+                    if (MainSceneController.DEBUG) {
+                        debugReporter.writeLn("Looking at row: " + k);
                     }
+                    int rowLength = rows.getRowLength(k);
+
+                    // Iterate through the cells of the row that belong to a field selected on the GUI
+                    for (int l = selectedColumns.nextSetBit(0); l >= 0 && l < rowLength; l = selectedColumns.nextSetBit(l + 1)) {
+                        String cellValue = rows.getCell(k, l);
+                        if (cellValue == null) {
+                            cellValue = "";
+                        }
+
+                        if (MainSceneController.DEBUG) {
+                            debugReporter.writeLn("Storing cell: " + cellValue + ", from field: " + columnToField[l]);
+                        }
 
-                    // If this patientID is found in at least one sheet
-                    if (!sheetToFieldToValue.isEmpty()) {
-                        patientToSheets.put(patientID, sheetToFieldToValue);
+                        // If this cell is for a new field then create a new values ArrayList for it
+                        values = fieldToValues.get(columnToField[l]);
+                        if (values == null) {
+                            values = new ArrayList<>();
+                            fieldToValues.put(columnToField[l], values);
+                        }
+                        values.add(cellValue);
                     }
+
+                    sheetToFieldToValue.put(sheet, fieldToValues);
                 }
             }
         }
 
-        reportFinalData(patientToSheets);
-        debugReporter.close();
+        return sheetToFieldToValue;
     }
 
     /**
-     * Collect all the unique patientIDs from the first sheet of the Excel file.
+     * Collect the data of every patientID and put it into
+     * {@link #patientToSheets patientToSheets} in the order of the patientIDs.
+     * <p>
+     * With a parallelism above 1 the patientIDs are split across a
+     * ForkJoinPool, every patient's data being built independently, and the
+     * results are then merged in the original order, giving the same result as
+     * the sequential run. Debugging always parses sequentially so that the
+     * debug file stays in order.
+     *
+     * @param patientIDs The patientIDs to collect the data of.
+     * @param patientParser Collects the data of a single patient.
+     */
+    private void parsePatients(ArrayList<String> patientIDs, Function<String, LinkedHashMap<String, LinkedHashMap>> patientParser) {
+        ArrayList<LinkedHashMap<String, LinkedHashMap>> results = new ArrayList<>(patientIDs.size());
+        patientToSheets = new LinkedHashMap<>();
+
+        if (parallelism <= 1 || MainSceneController.DEBUG) {
+            // Iterate through the patientIDs that were collected
+            for (String patientID : patientIDs) {
+                results.add(patientParser.apply(patientID));
+            }
+        } else {
+            LinkedHashMap[] parsed = new LinkedHashMap[patientIDs.size()];
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new PatientTask(patientIDs, patientParser, parsed, 0, patientIDs.size()));
+            } finally {
+                pool.shutdown();
+            }
+            for (LinkedHashMap patientData : parsed) {
+                results.add(patientData);
+            }
+        }
+
+        // Merge the results in the order of the patientIDs
+        for (int i = 0; i < patientIDs.size(); i++) {
+            // If data for this patientID is found in at least one sheet
+            if (!results.get(i).isEmpty()) {
+                patientToSheets.put(patientIDs.get(i), results.get(i));
+            }
+        }
+    }
+
+    /**
+     * Parses a range of patientIDs, splitting it in half until it is small
+     * enough to be parsed by a single worker.
+     */
+    private static class PatientTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 64;
+
+        private ArrayList<String> patientIDs;
+        private Function<String, LinkedHashMap<String, LinkedHashMap>> patientParser;
+        private LinkedHashMap[] results;
+        private int start, end;
+
+        /**
+         * @param patientIDs All the patientIDs.
+         * @param patientParser Collects the data of a single patient.
+         * @param results Receives the data of patient i at index i.
+         * @param start The first index of the range.
+         * @param end The index after the last of the range.
+         */
+        private PatientTask(ArrayList<String> patientIDs, Function<String, LinkedHashMap<String, LinkedHashMap>> patientParser,
+                LinkedHashMap[] results, int start, int end) {
+            this.patientIDs = patientIDs;
+            this.patientParser = patientParser;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= THRESHOLD) {
+                for (int i = start; i < end; i++) {
+                    results[i] = patientParser.apply(patientIDs.get(i));
+                }
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new PatientTask(patientIDs, patientParser, results, start, middle),
+                        new PatientTask(patientIDs, patientParser, results, middle, end));
+            }
+        }
+    }
+
+    /**
+     * The columns of a sheet that belong to fields selected by the user.
+     */
+    private static class ColumnSelection {
+
+        /**
+         * Has a bit set for every selected column.
+         */
+        private BitSet columns = new BitSet();
+        /**
+         * Maps the column index to its field, only set for selected columns.
+         * <p>
+         * I.e: [field, null, field, ...]
+         */
+        private String[] fields;
+    }
+
+    /**
+     * Compile the user's selection of sheets and fields into a
+     * {@link ColumnSelection ColumnSelection} for every sheet, so the parsing
+     * loops only have to test bits instead of looking fields up.
+     *
+     * @param selectedSheets Contains the sheets selected by the user.
+     * @return The selection of every sheet, null for sheets that weren't
+     * selected.
+     */
+    private ColumnSelection[] compileSelections(LinkedHashMap<String, ArrayList> selectedSheets) {
+        ColumnSelection[] selections = new ColumnSelection[sheets.size()];
+
+        // Iterate through the sheets
+        for (int j = 0; j < sheets.size(); j++) {
+            String sheet = indexToSheet.get(j);
+            if (selectedSheets.containsKey(sheet)) {
+                ArrayList selectedFields = selectedSheets.get(sheet);
+                LinkedHashMap<Integer, String> indexToField = sheetToIndices.get(sheet);
+                ColumnSelection selection = new ColumnSelection();
+                selection.fields = new String[sheets.get(j).getColumnCount()];
+
+                // Set the bit of every column whose field has been selected on the GUI
+                for (Integer index : indexToField.keySet()) {
+                    if (index < selection.fields.length && selectedFields.contains(indexToField.get(index))) {
+                        selection.columns.set(index);
+                        selection.fields[index] = indexToField.get(index);
+                    }
+                }
+                selections[j] = selection;
+            }
+        }
+        return selections;
+    }
+
+    /**
+     * Collect all the unique patientIDs from the first sheet of the Excel file
+     * that pass the patient filter.
      *
      * @param sheets The sheets to parse.
      * @return List of patientIDs.
      */
-    private ArrayList<String> collectPatientIDs(ArrayList<ArrayList> sheets) {
+    private ArrayList<String> collectPatientIDs(ArrayList<ColumnarSheet> sheets) {
         ArrayList<String> patientIDs = new ArrayList<>();
 
         // Collect all the patientID's from the first sheet
-        ArrayList rows = sheets.get(0);
-        for (int i = 1; i < rows.size(); i++) {
-            ArrayList cells = (ArrayList) rows.get(i);
-            if (cells.get(0) != null) {
-                patientIDs.add(cells.get(0).toString());
+        ColumnarSheet rows = sheets.get(0);
+        for (int i = 1; i < rows.getRowCount(); i++) {
+            if (rows.getCell(i, 0) != null && (patientFilter == null || patientFilter.test(rows.getCell(i, 0)))) {
+                patientIDs.add(rows.getCell(i, 0));
             }
         }
 
@@ -320,6 +528,50 @@ public class ExcelParser {
         }
     }
 
+    /**
+     * @param parallelism Number of worker threads patients are parsed with, 1
+     * to parse them sequentially.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Only parse the data of some patients. The rows of the other patients
+     * are dropped as soon as their patientID is read from the Excel file, so
+     * the parsing time follows the number of patients kept. The GUI doesn't
+     * set a filter, so it always parses every patient.
+     *
+     * @param patientFilter Tests the patientIDs to parse, I.e: a Set's
+     * contains method. It can be called by several threads at once. Null to
+     * parse every patient.
+     */
+    public void setPatientFilter(Predicate<String> patientFilter) {
+        this.patientFilter = patientFilter;
+    }
+
+    /**
+     * Turn the snapshots of the Excel files read from then on on or off. They
+     * are on unless the application was started with
+     * -Dxlsx-to-odm-xml.snapshots=false.
+     *
+     * @param enabled Whether the decoded sheets should be kept in, and loaded
+     * from, snapshots under ~/.xlsx-to-odm-xml/snapshots.
+     */
+    public static void setSnapshotsEnabled(boolean enabled) {
+        WorkbookSnapshot.setDirectory(enabled ? WorkbookSnapshot.DEFAULT_DIRECTORY : null);
+    }
+
+    /**
+     * Delete the snapshots of every Excel file read so far, which hold their
+     * decoded patient data.
+     *
+     * @return Whether all of them could be deleted.
+     */
+    public static boolean clearSnapshots() {
+        return WorkbookSnapshot.clear();
+    }
+
     public LinkedHashMap<String, LinkedHashMap> getPatientToSheets() {
         return patientToSheets;
     }
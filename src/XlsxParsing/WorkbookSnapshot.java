@@ -0,0 +1,537 @@
+package XlsxParsing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+
+/**
+ * <h1>On disk snapshot of a decoded XLSX file.</h1>
+ * <p>
+ * Decoding a large workbook with POI takes far longer than reading its
+ * decoded sheets back, so once an XlsxReader has decoded a workbook its
+ * {@link ColumnarSheet ColumnarSheets} are written to a compact binary file in
+ * the snapshot directory, named after the SHA-256 hash of the workbook's path.
+ * The next time the same workbook is read the snapshot is read back whole and
+ * the sheets are rebuilt from it instead.
+ * <p>
+ * A snapshot is only used while the workbook is unchanged, I.e: its path,
+ * size and modification time are the same, and so are the CRCs of its zip
+ * entries, which are read from the zip's central directory without
+ * decompressing anything.
+ * <p>
+ * The snapshot is only an optimisation, so any problem reading or writing it
+ * is logged and the workbook is simply decoded again.
+ * <p>
+ * A snapshot holds the decoded patient data in plain form, so snapshots that
+ * haven't been used for {@link #MAX_AGE MAX_AGE} are deleted, and so are the
+ * least recently used ones once all of them take up more than
+ * {@link #MAX_TOTAL_SIZE MAX_TOTAL_SIZE}. Snapshots are disabled by starting
+ * the application with the {@link #ENABLED_PROPERTY ENABLED_PROPERTY} system
+ * property set to false, I.e: java -Dxlsx-to-odm-xml.snapshots=false -jar
+ * XlsxToOdmXml.jar, and all of them can be deleted with {@link #clear clear}.
+ *
+ * @author James Conway
+ * @since 2018-07-18
+ */
+final class WorkbookSnapshot {
+
+    /**
+     * Written at the start of every snapshot file, changed whenever the
+     * format of the snapshot or the decoding of the cells changes.
+     */
+    private static final int FORMAT_VERSION = 5;
+
+    /**
+     * Snapshots that haven't been written or loaded for this long are deleted.
+     */
+    static final long MAX_AGE = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * Once all the snapshots take up more than this, the least recently used
+     * ones are deleted.
+     */
+    static final long MAX_TOTAL_SIZE = 1L << 30;
+
+    /**
+     * The system property that disables the snapshots when set to false.
+     */
+    static final String ENABLED_PROPERTY = "xlsx-to-odm-xml.snapshots";
+
+    static final File DEFAULT_DIRECTORY = new File(System.getProperty("user.home"), ".xlsx-to-odm-xml" + File.separator + "snapshots");
+
+    private static File directory = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true")) ? DEFAULT_DIRECTORY : null;
+
+    /**
+     * Where a sheet came from, used to tell whether it changed since the
+     * snapshot was written.
+     */
+    private static class SheetSource {
+
+        /**
+         * The name of the package part of the sheet, I.e: "/xl/worksheets/sheet1.xml".
+         */
+        private String part;
+        /**
+         * The CRC of the part of the sheet.
+         */
+        private long crc;
+        /**
+         * The indices of the shared strings used by the sheet.
+         */
+        private BitSet sharedStrings;
+        /**
+         * The SHA-256 hash of the shared strings used by the sheet.
+         */
+        private byte[] sharedStringsHash;
+        /**
+         * The position of the sheet in the snapshot file.
+         */
+        private int offset;
+
+        private SheetSource(String part, long crc, BitSet sharedStrings) {
+            this.part = part;
+            this.crc = crc;
+            this.sharedStrings = sharedStrings;
+        }
+    }
+
+    private File snapshotFile;
+
+    // The fingerprint of the workbook
+    private String path;
+    private long size, modified;
+    private byte[] entriesHash;
+
+    /**
+     * Maps the zip entries of the workbook to their CRC.
+     * <p>
+     * I.e: {"xl/worksheets/sheet1.xml" : crc}
+     */
+    private HashMap<String, Long> entryToCrc;
+
+    // The parts of the workbook that every sheet is decoded with
+    private ReadOnlySharedStringsTable sharedStrings;
+    private long stylesCrc = -1, sharedStringsCrc = -1, formulaBookCrc = -1;
+    private boolean date1904;
+
+    /**
+     * Maps the indices of the decoded sheets to where they came from.
+     */
+    private ConcurrentHashMap<Integer, SheetSource> indexToSource;
+
+    // The previous snapshot of a changed workbook, kept in memory while the
+    // workbook is decoded so that its unchanged sheets can be reused
+    private ByteBuffer previous;
+    private long previousStylesCrc, previousSharedStringsCrc, previousFormulaBookCrc;
+    private boolean previousDate1904;
+    private HashMap<String, SheetSource> partToPrevious;
+
+    /**
+     * Fingerprint the XLSX file and find its snapshot file.
+     *
+     * @param xlsxFile The file to be read.
+     */
+    WorkbookSnapshot(File xlsxFile) {
+        indexToSource = new ConcurrentHashMap<>();
+        if (directory == null) {
+            return;
+        }
+        try (ZipFile zipFile = new ZipFile(xlsxFile)) {
+            path = xlsxFile.getCanonicalPath();
+            size = xlsxFile.length();
+            modified = xlsxFile.lastModified();
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer entry = ByteBuffer.allocate(16);
+            entryToCrc = new HashMap<>();
+            for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements();) {
+                ZipEntry zipEntry = entries.nextElement();
+                entryToCrc.put(zipEntry.getName(), zipEntry.getCrc());
+                digest.update(zipEntry.getName().getBytes(StandardCharsets.UTF_8));
+                entry.clear();
+                entry.putLong(zipEntry.getCrc()).putLong(zipEntry.getSize());
+                digest.update(entry.array());
+            }
+            entriesHash = digest.digest();
+
+            StringBuilder name = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            snapshotFile = new File(directory, name.append(".bin").toString());
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            Logger.getLogger(WorkbookSnapshot.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Rebuild the sheets of the workbook from its snapshot, if it has an up to
+     * date one. Nothing is added to the given collections otherwise.
+     * <p>
+     * If the workbook changed since its snapshot was written, or the snapshot
+     * lacks some of the needed columns, the snapshot is kept so that the
+     * sheets that are still usable can be {@link #reuse reused}.
+     *
+     * @param sheets The sheets of the workbook, in workbook order.
+     * @param sheetToIndex Maps the sheet names to their index.
+     * @param indexToSheet Maps the sheet indices to their name.
+     * @param sheetToColumns Gives the columns needed of a sheet, null for all
+     * of them.
+     * @return Whether the sheets could be loaded from the snapshot.
+     */
+    boolean load(ArrayList<ColumnarSheet> sheets, HashMap<String, Integer> sheetToIndex, HashMap<Integer, String> indexToSheet,
+            Function<String, BitSet> sheetToColumns) {
+        if (snapshotFile == null || !snapshotFile.isFile()) {
+            return false;
+        }
+        try {
+            // Read into the heap rather than mapped, as a mapped file can't be
+            // replaced on Windows until the mapping is garbage collected, and
+            // the previous snapshot is replaced while it is still in use
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath()));
+            if (in.getInt() != FORMAT_VERSION || !readString(in).equals(path)) {
+                return false;
+            }
+            long snapshotSize = in.getLong();
+            long snapshotModified = in.getLong();
+            byte[] hash = new byte[in.getInt()];
+            in.get(hash);
+            boolean unchanged = snapshotSize == size && snapshotModified == modified && MessageDigest.isEqual(hash, entriesHash);
+            long snapshotStylesCrc = in.getLong();
+            long snapshotSharedStringsCrc = in.getLong();
+            long snapshotFormulaBookCrc = in.getLong();
+            boolean snapshotDate1904 = in.get() != 0;
+
+            // The sheet index is at the end of the file
+            in.position(in.getInt(in.limit() - 4));
+            int sheetCount = in.getInt();
+            String[] names = new String[sheetCount];
+            SheetSource[] sources = new SheetSource[sheetCount];
+            for (int i = 0; i < sheetCount; i++) {
+                names[i] = readString(in);
+                long[] words = new long[in.getInt()];
+                in.asLongBuffer().get(words);
+                in.position(in.position() + words.length * 8);
+                String part = readString(in);
+                sources[i] = new SheetSource(part, in.getLong(), BitSet.valueOf(words));
+                sources[i].sharedStringsHash = new byte[in.getInt()];
+                in.get(sources[i].sharedStringsHash);
+                sources[i].offset = in.getInt();
+            }
+
+            if (!unchanged) {
+                keepPrevious(in, snapshotStylesCrc, snapshotSharedStringsCrc, snapshotFormulaBookCrc, snapshotDate1904, sources);
+                return false;
+            }
+
+            ColumnarSheet[] loaded = new ColumnarSheet[sheetCount];
+            for (int i = 0; i < sheetCount; i++) {
+                in.position(sources[i].offset);
+                loaded[i] = ColumnarSheet.readFrom(in);
+                if (!loaded[i].hasColumns(sheetToColumns.apply(names[i]))) {
+                    keepPrevious(in, snapshotStylesCrc, snapshotSharedStringsCrc, snapshotFormulaBookCrc, snapshotDate1904, sources);
+                    return false;
+                }
+            }
+            for (int i = 0; i < sheetCount; i++) {
+                sheets.add(loaded[i]);
+                sheetToIndex.put(names[i], i);
+                indexToSheet.put(i, names[i]);
+            }
+            // The age of a snapshot counts from when it was last used
+            snapshotFile.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(WorkbookSnapshot.class.getName()).log(Level.WARNING, null, ex);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException ex) {
+            // A truncated or corrupted snapshot
+            Logger.getLogger(WorkbookSnapshot.class.getName()).log(Level.WARNING, null, ex);
+        }
+        previous = null;
+        partToPrevious = null;
+        return false;
+    }
+
+    private void keepPrevious(ByteBuffer in, long stylesCrc, long sharedStringsCrc, long formulaBookCrc,
+            boolean date1904, SheetSource[] sources) {
+        previous = in;
+        previousStylesCrc = stylesCrc;
+        previousSharedStringsCrc = sharedStringsCrc;
+        previousFormulaBookCrc = formulaBookCrc;
+        previousDate1904 = date1904;
+        partToPrevious = new HashMap<>();
+        for (SheetSource source : sources) {
+            partToPrevious.put(source.part, source);
+        }
+    }
+
+    /**
+     * Set the parts of the workbook that every sheet is decoded with. A
+     * sheet can only be reused if they didn't change in a way that would
+     * change its values.
+     *
+     * @param sharedStrings The shared strings of the workbook.
+     * @param sharedStringsPart The name of the shared strings part, null if there is none.
+     * @param stylesPart The name of the styles part, null if there is none.
+     * @param date1904 Whether the workbook uses the 1904 date windowing.
+     * @param formulaBookCrc The {@link XlsxFormulaBook#crc() checksum} of the
+     * sheet and defined names that the shared formulas are written with.
+     */
+    void setWorkbookParts(ReadOnlySharedStringsTable sharedStrings, String sharedStringsPart, String stylesPart,
+            boolean date1904, long formulaBookCrc) {
+        this.sharedStrings = sharedStrings;
+        this.sharedStringsCrc = partCrc(sharedStringsPart);
+        this.stylesCrc = partCrc(stylesPart);
+        this.date1904 = date1904;
+        this.formulaBookCrc = formulaBookCrc;
+    }
+
+    /**
+     * Get a sheet from the previous snapshot if neither the sheet nor anything
+     * it is decoded with changed since. The shared strings of a workbook
+     * change with any text cell of any sheet, so when they did only the
+     * strings used by the sheet are compared. The previous sheet must also
+     * hold all the needed columns.
+     *
+     * @param sheetIndex The index of the sheet in the workbook.
+     * @param sheetPart The name of the package part of the sheet.
+     * @param columns The columns needed of the sheet, null for all of them.
+     * @return The previously decoded sheet, null if it has to be decoded.
+     */
+    ColumnarSheet reuse(int sheetIndex, String sheetPart, BitSet columns) {
+        SheetSource source = partToPrevious != null ? partToPrevious.get(sheetPart) : null;
+        if (source == null || previousStylesCrc != stylesCrc || previousDate1904 != date1904
+                || previousFormulaBookCrc != formulaBookCrc
+                || partCrc(sheetPart) == -1 || source.crc != partCrc(sheetPart)) {
+            return null;
+        }
+        try {
+            if (previousSharedStringsCrc != sharedStringsCrc
+                    && !MessageDigest.isEqual(source.sharedStringsHash, hashSharedStrings(source.sharedStrings))) {
+                return null;
+            }
+            ByteBuffer in = previous.duplicate();
+            in.position(source.offset);
+            ColumnarSheet sheet = ColumnarSheet.readFrom(in);
+            if (!sheet.hasColumns(columns)) {
+                return null;
+            }
+            record(sheetIndex, sheetPart, source.sharedStrings);
+            return sheet;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException ex) {
+            // A corrupted snapshot, or a shared string index that no longer exists
+            Logger.getLogger(WorkbookSnapshot.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param sheetIndex The index of a decoded sheet in the workbook.
+     * @param sheetPart The name of the package part of the sheet.
+     * @param sharedStrings The indices of the shared strings used by the sheet.
+     */
+    void record(int sheetIndex, String sheetPart, BitSet sharedStrings) {
+        indexToSource.put(sheetIndex, new SheetSource(sheetPart, partCrc(sheetPart), sharedStrings));
+    }
+
+    /**
+     * Write the decoded sheets to the snapshot file. The snapshot is written
+     * to a temporary file first and then moved in place, so that a half
+     * written snapshot is never read.
+     * <p>
+     * I.e: header, sheets, then the index of the sheets and its position.
+     *
+     * @param sheets The decoded sheets, in workbook order.
+     * @param indexToSheet Maps the sheet indices to their name.
+     */
+    void save(ArrayList<ColumnarSheet> sheets, HashMap<Integer, String> indexToSheet) {
+        if (snapshotFile == null) {
+            return;
+        }
+        File temporaryFile = null;
+        try {
+            directory.mkdirs();
+            temporaryFile = File.createTempFile("snapshot", ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16))) {
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, path);
+                out.writeLong(size);
+                out.writeLong(modified);
+                out.writeInt(entriesHash.length);
+                out.write(entriesHash);
+                out.writeLong(stylesCrc);
+                out.writeLong(sharedStringsCrc);
+                out.writeLong(formulaBookCrc);
+                out.writeBoolean(date1904);
+
+                int[] offsets = new int[sheets.size()];
+                for (int i = 0; i < sheets.size(); i++) {
+                    offsets[i] = out.size();
+                    sheets.get(i).writeTo(out);
+                }
+
+                int indexOffset = out.size();
+                out.writeInt(sheets.size());
+                for (int i = 0; i < sheets.size(); i++) {
+                    // Sheets read without streaming have no part and are never reused
+                    SheetSource source = indexToSource.getOrDefault(i, new SheetSource("", -1, new BitSet()));
+                    writeString(out, indexToSheet.get(i));
+                    long[] words = source.sharedStrings.toLongArray();
+                    out.writeInt(words.length);
+                    for (long word : words) {
+                        out.writeLong(word);
+                    }
+                    writeString(out, source.part);
+                    out.writeLong(source.crc);
+                    byte[] hash = hashSharedStrings(source.sharedStrings);
+                    out.writeInt(hash.length);
+                    out.write(hash);
+                    out.writeInt(offsets[i]);
+                }
+                // DataOutputStream counts up to Integer.MAX_VALUE, past which the
+                // offsets are meaningless
+                if (out.size() == Integer.MAX_VALUE) {
+                    throw new IOException("Workbook too large for a snapshot.");
+                }
+                out.writeInt(indexOffset);
+            }
+            Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            evict(snapshotFile);
+        } catch (IOException ex) {
+            Logger.getLogger(WorkbookSnapshot.class.getName()).log(Level.WARNING, null, ex);
+            if (temporaryFile != null) {
+                temporaryFile.delete();
+            }
+        } finally {
+            previous = null;
+            partToPrevious = null;
+        }
+    }
+
+    /**
+     * @param part The name of a package part, I.e: "/xl/styles.xml".
+     * @return The CRC of the part, -1 if there is no such part.
+     */
+    private long partCrc(String part) {
+        if (part == null || entryToCrc == null) {
+            return -1;
+        }
+        return entryToCrc.getOrDefault(part.startsWith("/") ? part.substring(1) : part, -1L);
+    }
+
+    /**
+     * @param used The indices of some shared strings.
+     * @return The SHA-256 hash of those shared strings, empty without shared strings.
+     */
+    private byte[] hashSharedStrings(BitSet used) {
+        if (sharedStrings == null) {
+            return new byte[0];
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+                byte[] bytes = sharedStrings.getEntryAt(i).getBytes(StandardCharsets.UTF_8);
+                length.clear();
+                digest.update(length.putInt(bytes.length).array());
+                digest.update(bytes);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(WorkbookSnapshot.class.getName()).log(Level.WARNING, null, ex);
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Delete the snapshots that haven't been used for {@link #MAX_AGE MAX_AGE},
+     * then the least recently used ones until the rest fit in
+     * {@link #MAX_TOTAL_SIZE MAX_TOTAL_SIZE}. Temporary files left behind by
+     * a failed save are deleted once they are as old.
+     *
+     * @param keep The snapshot just written, which is never deleted.
+     */
+    private static void evict(File keep) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".bin") || name.endsWith(".tmp"));
+        if (files == null) {
+            return;
+        }
+        // Most recently used first
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        long now = System.currentTimeMillis();
+        long totalSize = keep.length();
+        for (File file : files) {
+            if (file.equals(keep)) {
+                continue;
+            }
+            boolean expired = now - file.lastModified() > MAX_AGE;
+            if (file.getName().endsWith(".tmp")) {
+                if (expired) {
+                    file.delete();
+                }
+            } else if (expired || totalSize + file.length() > MAX_TOTAL_SIZE) {
+                file.delete();
+            } else {
+                totalSize += file.length();
+            }
+        }
+    }
+
+    /**
+     * Delete every snapshot file, even when the snapshots are disabled.
+     *
+     * @return Whether all of them could be deleted.
+     */
+    static boolean clear() {
+        File[] files = (directory != null ? directory : DEFAULT_DIRECTORY).listFiles((dir, name) -> name.endsWith(".bin") || name.endsWith(".tmp"));
+        boolean cleared = true;
+        for (int i = 0; files != null && i < files.length; i++) {
+            cleared &= files[i].delete();
+        }
+        return cleared;
+    }
+
+    /**
+     * @param directory The directory to keep the snapshot files in, null to
+     * disable the snapshots.
+     */
+    static void setDirectory(File directory) {
+        WorkbookSnapshot.directory = directory;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        // writeUTF is limited to 64KB, which a cell could exceed
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
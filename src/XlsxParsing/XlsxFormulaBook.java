@@ -0,0 +1,317 @@
+package XlsxParsing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import javax.xml.parsers.ParserConfigurationException;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.EvaluationWorkbook.ExternalSheet;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.formula.FormulaRenderer;
+import org.apache.poi.ss.formula.FormulaRenderingWorkbook;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.SheetIdentifier;
+import org.apache.poi.ss.formula.ptg.Area3DPxg;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.NameXPxg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.Ref3DPxg;
+import org.apache.poi.ss.formula.udf.AggregatingUDFFinder;
+import org.apache.poi.ss.formula.udf.UDFFinder;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Table;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.SAXHelper;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * <h1>XLSX formula workbook.</h1>
+ * <p>
+ * Reads the sheet names and the defined names of the "xl/workbook.xml" part
+ * of an XLSX file, which is all the FormulaParser and the FormulaRenderer need
+ * to turn the shared formulas of the streaming reader into the same text that
+ * XSSFCell.getCellFormula() gives. It answers them the way the
+ * XSSFEvaluationWorkbook of a loaded workbook would.
+ * <p>
+ * Tables, and external workbooks that aren't referenced by their number, are
+ * not known here, a formula that uses them fails to parse. The book is safe to
+ * share between the readers of every sheet once it has been read.
+ *
+ * @author James Conway
+ * @since 2018-07-21
+ */
+class XlsxFormulaBook extends DefaultHandler implements FormulaParsingWorkbook, FormulaRenderingWorkbook {
+
+    private static final UDFFinder UDF_FINDER = AggregatingUDFFinder.DEFAULT;
+
+    private ArrayList<String> sheetNames;
+    private ArrayList<DefinedName> names;
+
+    private DefinedName currentName;
+
+    /**
+     * A defined name of the workbook.
+     */
+    private static class DefinedName implements EvaluationName {
+
+        private final String name;
+        private final int index, sheetIndex;
+        private final boolean function;
+        private final StringBuilder refersTo;
+
+        private DefinedName(String name, int index, int sheetIndex, boolean function) {
+            this.name = name;
+            this.index = index;
+            this.sheetIndex = sheetIndex;
+            this.function = function;
+            refersTo = new StringBuilder();
+        }
+
+        @Override
+        public String getNameText() {
+            return name;
+        }
+
+        @Override
+        public boolean isFunctionName() {
+            return function;
+        }
+
+        @Override
+        public boolean hasFormula() {
+            return !function && refersTo.length() > 0;
+        }
+
+        @Override
+        public Ptg[] getNameDefinition() {
+            throw new IllegalStateException("Defined names are never evaluated by the streaming reader.");
+        }
+
+        @Override
+        public boolean isRange() {
+            return hasFormula();
+        }
+
+        @Override
+        public NamePtg createPtg() {
+            return new NamePtg(index);
+        }
+    }
+
+    /**
+     * Create a formula book without any sheets or defined names.
+     */
+    XlsxFormulaBook() {
+        sheetNames = new ArrayList<>();
+        names = new ArrayList<>();
+    }
+
+    /**
+     * Parse the workbook part.
+     *
+     * @param workbookData The contents of "xl/workbook.xml".
+     */
+    void read(InputStream workbookData) throws IOException, SAXException, ParserConfigurationException {
+        try {
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(this);
+            parser.parse(new InputSource(workbookData));
+        } finally {
+            workbookData.close();
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if ("sheet".equals(localName)) {
+            sheetNames.add(attributes.getValue("name"));
+        } else if ("definedName".equals(localName)) {
+            String sheetIndex = attributes.getValue("localSheetId");
+            String function = attributes.getValue("function");
+            currentName = new DefinedName(attributes.getValue("name"), names.size(),
+                    sheetIndex != null ? Integer.parseInt(sheetIndex) : -1,
+                    "1".equals(function) || "true".equals(function));
+            names.add(currentName);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if ("definedName".equals(localName)) {
+            currentName = null;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (currentName != null) {
+            currentName.refersTo.append(ch, start, length);
+        }
+    }
+
+    /**
+     * Parse the formula of a cell.
+     *
+     * @param formula The formula text, as stored in the sheet.
+     * @param sheetIndex The index of the sheet of the cell.
+     * @param rowIndex The zero based row of the cell.
+     * @return The tokens of the formula.
+     * @throws RuntimeException If the formula uses something this book
+     * doesn't know.
+     */
+    Ptg[] parse(String formula, int sheetIndex, int rowIndex) {
+        return FormulaParser.parse(formula, this, FormulaType.CELL, sheetIndex, rowIndex);
+    }
+
+    /**
+     * @param ptgs The tokens of a formula.
+     * @return The formula text, as XSSFCell.getCellFormula() writes it.
+     */
+    String render(Ptg[] ptgs) {
+        return FormulaRenderer.toFormulaString(this, ptgs);
+    }
+
+    /**
+     * @return A checksum of everything that decides how a formula is parsed
+     * and written, so a snapshot knows whether its formulas are still valid.
+     */
+    long crc() {
+        CRC32 crc = new CRC32();
+        for (String sheetName : sheetNames) {
+            crc.update(sheetName.getBytes(StandardCharsets.UTF_8));
+            crc.update(0);
+        }
+        for (DefinedName name : names) {
+            crc.update(name.name.getBytes(StandardCharsets.UTF_8));
+            crc.update(0);
+            crc.update(name.sheetIndex);
+            crc.update(name.hasFormula() ? 1 : name.function ? 2 : 0);
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public EvaluationName getName(String name, int sheetIndex) {
+        for (DefinedName definedName : names) {
+            if (name.equalsIgnoreCase(definedName.name)
+                    && (definedName.sheetIndex == -1 || definedName.sheetIndex == sheetIndex)) {
+                return definedName;
+            }
+        }
+        return sheetIndex == -1 ? null : getName(name, -1);
+    }
+
+    @Override
+    public Name createName() {
+        throw new IllegalArgumentException("The streaming reader can't add names to the workbook.");
+    }
+
+    @Override
+    public Table getTable(String name) {
+        throw new IllegalArgumentException("Table '" + name + "' isn't known to the streaming reader.");
+    }
+
+    @Override
+    public Ptg getNameXPtg(String name, SheetIdentifier sheet) {
+        if (UDF_FINDER.findFunction(name) != null) {
+            return new NameXPxg(null, name);
+        }
+        if (sheet == null) {
+            for (DefinedName definedName : names) {
+                if (name.equalsIgnoreCase(definedName.name)) {
+                    return new NameXPxg(null, name);
+                }
+            }
+            return null;
+        }
+        if (sheet.getSheetIdentifier() == null) {
+            return new NameXPxg(bookIndex(sheet.getBookName()), null, name);
+        }
+        String sheetName = sheet.getSheetIdentifier().getName();
+        if (sheet.getBookName() != null) {
+            return new NameXPxg(bookIndex(sheet.getBookName()), sheetName, name);
+        }
+        return new NameXPxg(sheetName, name);
+    }
+
+    @Override
+    public Ptg get3DReferencePtg(CellReference cell, SheetIdentifier sheet) {
+        if (sheet.getBookName() != null) {
+            return new Ref3DPxg(bookIndex(sheet.getBookName()), sheet, cell);
+        }
+        return new Ref3DPxg(sheet, cell);
+    }
+
+    @Override
+    public Ptg get3DReferencePtg(AreaReference area, SheetIdentifier sheet) {
+        if (sheet.getBookName() != null) {
+            return new Area3DPxg(bookIndex(sheet.getBookName()), sheet, area);
+        }
+        return new Area3DPxg(sheet, area);
+    }
+
+    /**
+     * @param bookName The workbook part of a reference, I.e: "1" for
+     * [1]Sheet1!A1, as Excel stores references to other workbooks.
+     * @return The number of the external workbook.
+     * @throws IllegalArgumentException If the workbook is referenced by its file
+     * name, as only the external link tables could resolve it.
+     */
+    private static int bookIndex(String bookName) {
+        try {
+            return Integer.parseInt(bookName);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("External workbook '" + bookName + "' isn't known to the streaming reader.");
+        }
+    }
+
+    @Override
+    public int getExternalSheetIndex(String sheetName) {
+        return sheetNames.indexOf(sheetName);
+    }
+
+    @Override
+    public int getExternalSheetIndex(String workbookName, String sheetName) {
+        throw new IllegalArgumentException("External workbook '" + workbookName + "' isn't known to the streaming reader.");
+    }
+
+    @Override
+    public SpreadsheetVersion getSpreadsheetVersion() {
+        return SpreadsheetVersion.EXCEL2007;
+    }
+
+    @Override
+    public ExternalSheet getExternalSheet(int externSheetIndex) {
+        throw new IllegalStateException("HSSF-style external references are not supported for XSSF");
+    }
+
+    @Override
+    public String getSheetFirstNameByExternSheet(int externSheetIndex) {
+        return sheetNames.get(externSheetIndex);
+    }
+
+    @Override
+    public String getSheetLastNameByExternSheet(int externSheetIndex) {
+        return sheetNames.get(externSheetIndex);
+    }
+
+    @Override
+    public String resolveNameXText(NameXPtg nameXPtg) {
+        return names.get(nameXPtg.getNameIndex()).name;
+    }
+
+    @Override
+    public String getNameText(NamePtg namePtg) {
+        return names.get(namePtg.getIndex()).name;
+    }
+}
@@ -5,20 +5,42 @@ import GUI.MainSceneController;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
-import org.apache.poi.ss.usermodel.CellType;
+import javax.xml.parsers.ParserConfigurationException;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
 import org.apache.poi.ss.usermodel.DataFormatter;
 import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
 import org.apache.poi.xssf.usermodel.XSSFRow;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * <h1>XLSX file reader.</h1>
@@ -26,40 +48,99 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
  * This class is used mainly for the exact reading of XLSX files with the help
  * of the Apache POI library, the data of which should then be 
  * interpreted by a Parser class for use in the program.
+ * <p>
+ * The file can either be loaded whole into an XSSFWorkbook, or be streamed
+ * sheet by sheet with POI's event model, which reads the rows one at a time
+ * with an {@link XlsxSheetHandler XlsxSheetHandler} and never builds the
+ * workbook's DOM in memory. In parallel mode every sheet is decoded by its
+ * own worker thread.
  *
  * @author James Conway
  * @since 2018-07-18
  */
 public class XlsxReader {
-    
+
     /**
-     * ArrayList containing rows ArrayLists, which contain cells ArrayLists.
+     * ArrayList containing the sheets in workbook order, each stored column by
+     * column.
      * <p>
-     * I.e: [[[cell, cell, cell], [cell, cell, cell], ...], [[cell, cell, cell], [cell, cell, cell], ...]]
+     * I.e: [sheet, sheet, sheet]
      */
-    private ArrayList<ArrayList> sheets;
-    private ArrayList<ArrayList> rows;
-    private ArrayList<String> cells;
+    private ArrayList<ColumnarSheet> sheets;
     private HashMap<String, Integer> sheetToIndex;
     private HashMap<Integer, String> indexToSheet;
     private XSSFWorkbook wb;
+    private OPCPackage pkg;
+    private File xlsxFile;
+    private boolean streaming, parallel, snapshots;
+    /**
+     * Maps the sheets to the columns that are read, null to read every
+     * column.
+     * <p>
+     * I.e: {sheet : {column, column}}
+     */
+    private HashMap<String, BitSet> sheetToColumns;
+    /**
+     * Tests the patientID of the rows to keep, null to keep every row.
+     */
+    private Predicate<String> rowFilter;
+    /**
+     * The row filter that the current sheets were read with.
+     */
+    private Predicate<String> sheetsRowFilter;
+    private WorkbookSnapshot snapshot;
     private DebugReporter debugReporter;
 
     /**
-     * Get the XLSX file to be read and create an XSSFWorkbook with it.
+     * Get the XLSX file to be read with an XSSFWorkbook.
      * <p>
      * XSSFWorkbooks are used to read the contents of XLSX files.
      * @param xlsxFile The file to be read.
      */
     XlsxReader(File xlsxFile) {
+        this(xlsxFile, false);
+    }
+
+    /**
+     * Get the XLSX file to be read, either with an XSSFWorkbook or by
+     * streaming it as an OPCPackage. The file is only opened when it is read,
+     * as it isn't needed at all when its sheets are loaded from a snapshot.
+     *
+     * @param xlsxFile The file to be read.
+     * @param streaming Whether the file should be streamed instead of being
+     * loaded into an XSSFWorkbook.
+     */
+    XlsxReader(File xlsxFile, boolean streaming) {
+        this.xlsxFile = xlsxFile;
+        this.streaming = streaming;
+    }
+
+    /**
+     * Either create an XSSFWorkbook with the XLSX file, or open it as an
+     * OPCPackage to be streamed.
+     *
+     * @return Whether the file could be opened.
+     */
+    private boolean openWorkbook() {
         try {
-            // Open the Excel workbook
-            wb = new XSSFWorkbook(new FileInputStream(xlsxFile));
+            if (streaming) {
+                // Open the Excel package without loading any of its parts
+                pkg = OPCPackage.open(xlsxFile, PackageAccess.READ);
+            } else {
+                // Open the Excel workbook
+                wb = new XSSFWorkbook(new FileInputStream(xlsxFile));
+            }
+            return true;
         } catch (IOException ex) {
             Alert alert = new Alert(Alert.AlertType.ERROR, "IOException: " + ex.getLocalizedMessage(), ButtonType.OK);
             alert.showAndWait();
             Logger.getLogger(XlsxReader.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (OpenXML4JException ex) {
+            Alert alert = new Alert(Alert.AlertType.ERROR, "OpenXML4JException: " + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+            Logger.getLogger(XlsxReader.class.getName()).log(Level.SEVERE, null, ex);
         }
+        return false;
     }
 
     /**
@@ -67,90 +148,526 @@ public class XlsxReader {
      * <p>
      * While the method iterates through the file, it populates the sheets 
      * ArrayList, and the sheetToIndex and indexToSheet HashMaps.
+     * <p>
+     * If snapshots are enabled and the file is unchanged since it was last
+     * decoded, the sheets are loaded from its {@link WorkbookSnapshot
+     * WorkbookSnapshot} instead, otherwise the snapshot is written once the
+     * file has been decoded. When streaming a changed file, only the sheets
+     * that changed since the snapshot are decoded again.
      */
     public void readWorkbook() {
+        read(null);
+    }
+
+    /**
+     * Read the XLSX file like {@link #readWorkbook() readWorkbook}, but only
+     * decode the given columns of each sheet. The header row is always read
+     * whole, the other cells are left empty without being decoded or
+     * formatted, and sheets without any columns are only read up to their
+     * header row.
+     * <p>
+     * The first column holds the patientIDs that the rows are indexed by, so
+     * it should be part of every projection that isn't empty.
+     *
+     * @param sheetToColumns Maps the sheets to the columns to read. I.e:
+     * {sheet : {column, column}}
+     */
+    public void readWorkbook(HashMap<String, BitSet> sheetToColumns) {
+        read(sheetToColumns);
+    }
+
+    /**
+     * Only read the first row of every sheet, I.e: its headers, and stop
+     * reading each sheet as soon as it is complete.
+     * <p>
+     * If snapshots are enabled and the file is unchanged since it was last
+     * decoded, the sheets are loaded from its snapshot instead, as that is
+     * just as fast. {@link #hasColumns hasColumns} tells whether they hold
+     * more than the headers.
+     */
+    public void readHeaders() {
+        read(new HashMap<>());
+    }
+
+    /**
+     * @param sheetToColumns The columns to read of every sheet, null for all
+     * of them.
+     */
+    private void read(HashMap<String, BitSet> sheetToColumns) {
         sheets = new ArrayList<>();
         sheetToIndex = new HashMap<>();
         indexToSheet = new HashMap<>();
-        DataFormatter dataFormatter = new DataFormatter();
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        DateFormat timeFormat = new SimpleDateFormat("HH:mm");
-        
+        this.sheetToColumns = sheetToColumns;
+        sheetsRowFilter = null;
+
+        // A snapshot holds every row, so it can be used with any row filter
+        snapshot = snapshots ? new WorkbookSnapshot(xlsxFile) : null;
+        if (snapshot != null && snapshot.load(sheets, sheetToIndex, indexToSheet, this::columnsOf)) {
+            return;
+        }
+        sheetsRowFilter = rowFilter;
+        // The sheets of a header scan would be of no use in a snapshot
+        if (sheetToColumns != null && sheetToColumns.isEmpty()) {
+            snapshot = null;
+        }
+        if (!openWorkbook()) {
+            return;
+        }
+
         if (MainSceneController.DEBUG) {
             debugReporter = new DebugReporter("XlsxReader.txt");
         }
 
+        boolean decoded = false;
+        try {
+            ArrayList<Callable<ColumnarSheet>> sheetReaders;
+            if (streaming) {
+                sheetReaders = prepareStreamedSheets();
+            } else {
+                sheetReaders = prepareLoadedSheets();
+            }
+            decodeSheets(sheetReaders);
+            decoded = true;
+        } catch (IOException ex) {
+            Alert alert = new Alert(Alert.AlertType.ERROR, "IOException: " + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+            Logger.getLogger(XlsxReader.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (OpenXML4JException ex) {
+            Alert alert = new Alert(Alert.AlertType.ERROR, "OpenXML4JException: " + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+            Logger.getLogger(XlsxReader.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (SAXException | ParserConfigurationException ex) {
+            Alert alert = new Alert(Alert.AlertType.ERROR, "Invalid XLSX contents: " + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+            Logger.getLogger(XlsxReader.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (Exception ex) {
+            Alert alert = new Alert(Alert.AlertType.ERROR, "Exception: " + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+            Logger.getLogger(XlsxReader.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            if (streaming) {
+                pkg.revert();
+            } else {
+                try {
+                    wb.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(XlsxReader.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        if (MainSceneController.DEBUG) {
+            debugReporter.close();
+        }
+
+        // Only a completely decoded workbook is kept, with all of its rows
+        if (decoded && snapshot != null && rowFilter == null) {
+            snapshot.save(sheets, indexToSheet);
+        }
+        snapshot = null;
+    }
+
+    /**
+     * Run the readers of every sheet and put their rows into the sheets
+     * ArrayList in workbook order.
+     * <p>
+     * In parallel mode each sheet is decoded by its own worker. Debugging
+     * always reads the sheets one at a time so that the debug file stays in
+     * order.
+     *
+     * @param sheetReaders The readers of the sheets, in workbook order.
+     * @throws Exception Any exception thrown while decoding a sheet.
+     */
+    private void decodeSheets(ArrayList<Callable<ColumnarSheet>> sheetReaders) throws Exception {
+        if (!parallel || MainSceneController.DEBUG || sheetReaders.size() < 2) {
+            for (Callable<ColumnarSheet> sheetReader : sheetReaders) {
+                sheets.add(sheetReader.call());
+            }
+            return;
+        }
+
+        int threads = Math.min(sheetReaders.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // Join the decoded sheets back together in the order they were submitted
+            for (Future<ColumnarSheet> sheet : executor.invokeAll(sheetReaders)) {
+                try {
+                    sheets.add(sheet.get());
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof Exception) {
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Register the sheets of the loaded XSSFWorkbook and create a reader for
+     * each of them.
+     *
+     * @return The readers of the sheets, in workbook order.
+     */
+    private ArrayList<Callable<ColumnarSheet>> prepareLoadedSheets() {
+        ArrayList<Callable<ColumnarSheet>> sheetReaders = new ArrayList<>();
+        XlsxStyleTable styles = new XlsxStyleTable(wb);
+
         // Iterate through the sheets 
         for (int i = 0; i < wb.getNumberOfSheets(); i++) {
-            rows = new ArrayList<>();
             XSSFSheet sheet = wb.getSheetAt(i);
             sheetToIndex.put(sheet.getSheetName(), i);
             indexToSheet.put(i, sheet.getSheetName());
+            sheetReaders.add(() -> readSheet(sheet, styles));
+        }
+        return sheetReaders;
+    }
+
+    /**
+     * Iterate through the rows of a loaded sheet and collect their values.
+     * <p>
+     * Each call uses its own DataFormatter, as it can't be shared between
+     * threads.
+     *
+     * @param sheet The sheet to read.
+     * @param styles The cell styles of the workbook.
+     * @return The rows of the sheet, stored column by column.
+     */
+    private ColumnarSheet readSheet(XSSFSheet sheet, XlsxStyleTable styles) {
+        ColumnarSheet sheetData = new ColumnarSheet();
+        BitSet columns = columnsOf(sheet.getSheetName());
+        sheetData.setProjection(columns);
+        ArrayList<String> cells;
+        DataFormatter dataFormatter = new DataFormatter();
+        boolean date1904 = wb.isDate1904();
+
+        if (MainSceneController.DEBUG) {
+            debugReporter.writeLn("\nLooking at sheet: " + sheet.getSheetName());
+        }
+
+        // Iterate through the rows of the sheet, or until its headers are read
+        for (int j = 0; j <= sheet.getLastRowNum() && !(columns != null && columns.isEmpty() && sheetData.getRowCount() > 0); j++) {
+            cells = new ArrayList<>();
+            XSSFRow row = sheet.getRow(j);
 
             if (MainSceneController.DEBUG) {
-                debugReporter.writeLn("\nLooking at sheet: " + sheet.getSheetName());
+                debugReporter.writeLn("\nLooking at row: " + j);
             }
 
-            // Iterate through the rows of the sheet
-            for (int j = 0; j <= sheet.getLastRowNum(); j++) {
-                cells = new ArrayList<>();
-                XSSFRow row = sheet.getRow(j);
+            if (row != null && row.getLastCellNum() > 0) {
 
-                if (MainSceneController.DEBUG) {
-                    debugReporter.writeLn("\nLooking at row: " + j);
+                // Iterate through the columns of the row and collect their values
+                for (int k = 0; k < row.getLastCellNum(); k++) {
+                    // Cells outside the projection are never decoded or formatted
+                    if (columns != null && sheetData.getRowCount() > 0 && !columns.get(k)) {
+                        cells.add(null);
+                    } else {
+                        XSSFCell cell = row.getCell(k);
+                        if (MainSceneController.DEBUG && cell != null && !cell.toString().isEmpty()) {
+                            debugReporter.writeLn("Storing cell " + k + ": " + cell.toString());
+                        }
+                        cells.add(cell != null ? decodeCell(cell, styles, dataFormatter, date1904) : null);
+                    }
+
+                    // The first cell of a row decides whether the rest of it is read
+                    if (k == 0 && rowFilter != null && sheetData.getRowCount() > 0
+                            && (cells.get(0) == null || !rowFilter.test(cells.get(0)))) {
+                        cells = null;
+                        break;
+                    }
                 }
 
-                if (row != null && row.getLastCellNum() > 0) {
-
-                    // Iterate through the columns of the row and collect their values
-                    for (int k = 0; k < row.getLastCellNum(); k++) {
-                        if (row.getCell(k) != null && !row.getCell(k).toString().isEmpty()) {
-                            if (MainSceneController.DEBUG) {
-                                debugReporter.writeLn("Storing cell " + k + ": " + row.getCell(k).toString());
-                            }
-
-                            // Some Excel entries contained '--' instead of an empty cell
-                            // so I had to include this condition for it
-                            if (row.getCell(k).toString().startsWith("--")) {
-                                cells.add(null);
-                            } else // If the entry is a date then convert it to the yyyy-mm-dd format
-                            {
-                                if (row.getCell(k).getCellTypeEnum() == CellType.NUMERIC && DateUtil.isCellDateFormatted(row.getCell(k))) {
-                                    String timeCheck = row.getCell(k).getCellStyle().getDataFormatString();
-                                    // If this format mentions hours then it must be a Time cell
-                                    if (timeCheck.toLowerCase().contains("h")) {
-                                        cells.add(timeFormat.format(row.getCell(k).getDateCellValue()));
-                                    } // Otherwise we just consider it a date cell
-                                    else {
-                                        cells.add(dateFormat.format(row.getCell(k).getDateCellValue()));
-                                    }
-                                } else {
-                                    cells.add(dataFormatter.formatCellValue(row.getCell(k)));
-                                }
-                            }
-                        } else {
-                            cells.add(null);
-                        }
+                if (cells != null) {
+                    sheetData.addRow(cells);
+                }
+            }
+        }
+
+        sheetData.trim();
+        return sheetData;
+    }
+
+    /**
+     * Decode a loaded cell into its String value, fetching the cell's type and
+     * value only once.
+     * <p>
+     * Text, boolean and formula cells are returned as they are, as the
+     * DataFormatter would. Numeric cells are dates in the yyyy-mm-dd format
+     * or times in the HH:mm format if their style is a date format, whole
+     * numbers of the General format are written directly, and only the other
+     * number formats go through the DataFormatter.
+     *
+     * @param cell The cell to decode.
+     * @param styles The cell styles of the workbook, so that each style's
+     * format is only inspected once.
+     * @param date1904 Whether the workbook uses the 1904 date windowing.
+     * @return The cell value, null if the cell is empty or starts with '--'.
+     */
+    private String decodeCell(XSSFCell cell, XlsxStyleTable styles,
+            DataFormatter dataFormatter, boolean date1904) {
+        String text;
+        switch (cell.getCellTypeEnum()) {
+            case BLANK:
+                return null;
+            case STRING:
+                text = cell.getStringCellValue();
+                break;
+            case FORMULA:
+                text = cell.getCellFormula();
+                break;
+            case BOOLEAN:
+                return cell.getBooleanCellValue() ? "TRUE" : "FALSE";
+            case NUMERIC:
+                double number = cell.getNumericCellValue();
+                XSSFCellStyle style = cell.getCellStyle();
+                int kind = style != null ? styles.getKind(style.getIndex() & 0xffff) : XlsxStyleTable.OTHER_NUMBER;
+                if (kind == XlsxStyleTable.GENERAL_NUMBER) {
+                    String wholeNumber = XlsxSheetHandler.formatGeneralWholeNumber(number);
+                    if (wholeNumber != null) {
+                        return wholeNumber;
                     }
+                } else if ((kind == XlsxStyleTable.DATE || kind == XlsxStyleTable.TIME) && DateUtil.isValidExcelDate(number)) {
+                    return XlsxStyleTable.formatDate(number, date1904, kind);
+                }
+                return dataFormatter.formatCellValue(cell);
+            default:
+                text = cell.toString();
+                if (!text.isEmpty() && !text.startsWith("--")) {
+                    text = dataFormatter.formatCellValue(cell);
+                }
+                break;
+        }
+
+        // Some Excel entries contained '--' instead of an empty cell
+        // so I had to include this condition for it
+        if (text.isEmpty() || text.startsWith("--")) {
+            return null;
+        }
+        return text;
+    }
 
-                    rows.add(cells);
+    /**
+     * Register the sheets of the XLSX package and create a streaming reader
+     * for each of them.
+     * <p>
+     * Only the shared strings, the styles and the names of the sheets and
+     * defined names, for the formulas, are read here, they are then
+     * shared read-only by the readers of every sheet. Sheets that didn't
+     * change since the workbook's snapshot are taken from it instead of
+     * getting a reader.
+     *
+     * @return The readers of the sheets, in workbook order.
+     */
+    private ArrayList<Callable<ColumnarSheet>> prepareStreamedSheets()
+            throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+        ArrayList<Callable<ColumnarSheet>> sheetReaders = new ArrayList<>();
+        XSSFReader xssfReader = new XSSFReader(pkg);
+        ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(pkg, false);
+        XlsxStyleTable styles = new XlsxStyleTable();
+        styles.read(xssfReader.getStylesData());
+        boolean date1904 = isDate1904(xssfReader.getWorkbookData());
+        XlsxFormulaBook formulaBook = new XlsxFormulaBook();
+        formulaBook.read(xssfReader.getWorkbookData());
+        if (snapshot != null) {
+            snapshot.setWorkbookParts(sharedStrings, partName(XSSFRelation.SHARED_STRINGS),
+                    partName(XSSFRelation.STYLES), date1904, formulaBook.crc());
+        }
+
+        // Iterate through the sheets
+        XSSFReader.SheetIterator sheetIterator = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+        for (int i = 0; sheetIterator.hasNext(); i++) {
+            sheetIterator.next().close();
+            String sheetName = sheetIterator.getSheetName();
+            PackagePart sheetPart = sheetIterator.getSheetPart();
+            sheetToIndex.put(sheetName, i);
+            indexToSheet.put(i, sheetName);
+            int sheetIndex = i;
+            ColumnarSheet previousSheet = snapshot != null
+                    ? snapshot.reuse(sheetIndex, sheetPart.getPartName().getName(), columnsOf(sheetName)) : null;
+            if (previousSheet != null) {
+                if (MainSceneController.DEBUG) {
+                    debugReporter.writeLn("\nReusing unchanged sheet: " + sheetName);
                 }
+                sheetReaders.add(() -> previousSheet);
+            } else {
+                sheetReaders.add(() -> {
+                    BitSet sharedStringsUsed = new BitSet();
+                    ColumnarSheet sheetData = streamSheet(sheetName, sheetIndex, sheetPart, sharedStrings, styles,
+                            formulaBook, date1904, sharedStringsUsed);
+                    if (snapshot != null) {
+                        snapshot.record(sheetIndex, sheetPart.getPartName().getName(), sharedStringsUsed);
+                    }
+                    return sheetData;
+                });
             }
+        }
+        return sheetReaders;
+    }
+
+    /**
+     * @param relation The relation of a workbook level part.
+     * @return The name of the first part of the package with the content type
+     * of the relation, null if there is none.
+     */
+    private String partName(XSSFRelation relation) throws InvalidFormatException {
+        ArrayList<PackagePart> parts = pkg.getPartsByContentType(relation.getContentType());
+        return parts.isEmpty() ? null : parts.get(0).getPartName().getName();
+    }
+
+    /**
+     * Stream the rows of a sheet one at a time and collect their values.
+     * <p>
+     * Only the shared strings, the styles, and the sheet currently being read
+     * are held in memory, the rows of the sheet are handed over by an
+     * {@link XlsxSheetHandler XlsxSheetHandler} as they are parsed. Each call
+     * uses its own DataFormatter, as it can't be shared between threads.
+     *
+     * @param sheetName The name of the sheet.
+     * @param sheetIndex The index of the sheet in the workbook.
+     * @param sheetPart The package part containing the sheet.
+     * @param sharedStrings The shared strings of the workbook.
+     * @param styles The cell styles of the workbook.
+     * @param formulaBook The sheet and defined names of the workbook.
+     * @param date1904 Whether the workbook uses the 1904 date windowing.
+     * @param sharedStringsUsed Collects the index of every shared string the
+     * sheet uses.
+     * @return The rows of the sheet, stored column by column.
+     */
+    private ColumnarSheet streamSheet(String sheetName, int sheetIndex, PackagePart sheetPart,
+            ReadOnlySharedStringsTable sharedStrings, XlsxStyleTable styles, XlsxFormulaBook formulaBook,
+            boolean date1904, BitSet sharedStringsUsed)
+            throws IOException, SAXException, ParserConfigurationException {
+        ColumnarSheet sheetData = new ColumnarSheet();
+        BitSet columns = columnsOf(sheetName);
+        sheetData.setProjection(columns);
+        DataFormatter dataFormatter = new DataFormatter();
+
+        if (MainSceneController.DEBUG) {
+            debugReporter.writeLn("\nLooking at sheet: " + sheetName);
+        }
 
-            sheets.add(rows);
+        XlsxSheetHandler sheetHandler = new XlsxSheetHandler(sharedStrings, styles,
+                dataFormatter, date1904, cells -> {
+                    if (MainSceneController.DEBUG) {
+                        debugReporter.writeLn("Storing row: " + cells);
+                    }
+                    sheetData.addRow(cells);
+                }, sharedStringsUsed);
+        sheetHandler.setFormulaBook(formulaBook, sheetIndex);
+        if (columns != null && columns.isEmpty()) {
+            sheetHandler.setRowLimit(1);
+        } else {
+            sheetHandler.setColumns(columns);
+            sheetHandler.setRowFilter(rowFilter);
+        }
+        try (InputStream sheetStream = sheetPart.getInputStream()) {
+            XMLReader sheetParser = SAXHelper.newXMLReader();
+            sheetParser.setContentHandler(sheetHandler);
+            sheetParser.parse(new InputSource(sheetStream));
+        } catch (XlsxSheetHandler.RowLimitReachedException ex) {
+            // The rest of the sheet isn't needed
         }
+        sheetData.trim();
+        return sheetData;
+    }
+
+    /**
+     * Check the workbookPr element of the workbook part for the 1904 date
+     * windowing, which changes the day that Excel dates count from.
+     *
+     * @param workbookData The contents of "xl/workbook.xml".
+     * @return Whether the workbook uses the 1904 date windowing.
+     */
+    private boolean isDate1904(InputStream workbookData) throws IOException, SAXException, ParserConfigurationException {
+        boolean[] date1904 = {false};
         try {
-            wb.close();
-        } catch (IOException ex) {
-            Logger.getLogger(XlsxReader.class.getName()).log(Level.SEVERE, null, ex);
+            XMLReader workbookParser = SAXHelper.newXMLReader();
+            workbookParser.setContentHandler(new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    if ("workbookPr".equals(localName)) {
+                        String value = attributes.getValue("date1904");
+                        date1904[0] = "1".equals(value) || "true".equals(value);
+                    }
+                }
+            });
+            workbookParser.parse(new InputSource(workbookData));
+        } finally {
+            workbookData.close();
         }
-        
-        if (MainSceneController.DEBUG) {
-            debugReporter.close();
+        return date1904[0];
+    }
+
+    /**
+     * @param parallel Whether each sheet should be decoded on its own worker
+     * thread.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @param snapshots Whether the decoded sheets should be kept in, and
+     * loaded from, a {@link WorkbookSnapshot WorkbookSnapshot}.
+     */
+    public void setSnapshots(boolean snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * @param sheetName The name of a sheet.
+     * @return The columns to read of the sheet, null for all of them.
+     */
+    private BitSet columnsOf(String sheetName) {
+        if (sheetToColumns == null) {
+            return null;
+        }
+        BitSet columns = sheetToColumns.get(sheetName);
+        return columns != null ? (BitSet) columns.clone() : new BitSet();
+    }
+
+    /**
+     * Only keep the rows after the header whose first cell passes a filter.
+     * The first cell of every row is decoded before any other, and the rest
+     * of the rows that fail the filter are never decoded. A workbook read
+     * with a filter is never kept in a snapshot.
+     *
+     * @param rowFilter Tests the patientID of a row, it can be called by
+     * several threads at once. Null to keep every row.
+     */
+    public void setRowFilter(Predicate<String> rowFilter) {
+        this.rowFilter = rowFilter;
+    }
+
+    /**
+     * @param rowFilter A row filter that is needed.
+     * @return Whether the read sheets hold every row that passes the filter.
+     */
+    public boolean hasRows(Predicate<String> rowFilter) {
+        return sheetsRowFilter == null || sheetsRowFilter == rowFilter;
+    }
+
+    /**
+     * @param sheetToColumns Maps the sheets to the columns that are needed,
+     * null for all of them.
+     * @return Whether the read sheets hold all of those columns.
+     */
+    public boolean hasColumns(HashMap<String, BitSet> sheetToColumns) {
+        for (int i = 0; i < sheets.size(); i++) {
+            BitSet columns = null;
+            if (sheetToColumns != null) {
+                columns = sheetToColumns.getOrDefault(indexToSheet.get(i), new BitSet());
+            }
+            if (!sheets.get(i).hasColumns(columns)) {
+                return false;
+            }
         }
+        return true;
     }
 
-    public ArrayList<ArrayList> getSheets() {
+    public ArrayList<ColumnarSheet> getSheets() {
         return sheets;
     }
 
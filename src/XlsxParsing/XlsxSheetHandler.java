@@ -0,0 +1,417 @@
+package XlsxParsing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.SharedFormula;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * <h1>Streaming XLSX sheet handler.</h1>
+ * <p>
+ * SAX handler for a single "xl/worksheets/sheetN.xml" part. Every row is
+ * decoded into a cells ArrayList as soon as its closing tag is read and handed
+ * to a {@link RowListener RowListener}, so the sheet never has to be held in
+ * memory as a DOM. The cell values are the same Strings that the XSSFWorkbook
+ * based reading of {@link XlsxReader XlsxReader} gives.
+ * <p>
+ * Formula cells give their formula, as XSSFCell.getCellFormula() does. Excel
+ * only writes the text of a shared formula on the first cell of its range, so
+ * the formula is kept and shifted to every other cell of the range with the
+ * {@link XlsxFormulaBook XlsxFormulaBook} of the workbook. The cells of an
+ * array formula all give the formula of the array.
+ *
+ * @author James Conway
+ * @since 2018-07-18
+ */
+class XlsxSheetHandler extends DefaultHandler {
+
+    /**
+     * Receives the rows of a sheet one at a time.
+     */
+    interface RowListener {
+
+        /**
+         * @param cells The cell values of the row, null for empty cells.
+         */
+        void rowRead(ArrayList<String> cells);
+    }
+
+    /**
+     * Thrown once the row limit has been read, to stop the parser without
+     * reading the rest of the sheet.
+     */
+    static class RowLimitReachedException extends SAXException {
+
+        private static final long serialVersionUID = 1L;
+
+        private RowLimitReachedException() {
+            super("Row limit reached.");
+        }
+    }
+
+    private ReadOnlySharedStringsTable sharedStrings;
+    private XlsxStyleTable styles;
+    private DataFormatter dataFormatter;
+    private boolean date1904;
+    private RowListener listener;
+    private BitSet sharedStringsUsed;
+    private int rowLimit, rowCount;
+    private BitSet columns;
+    private Predicate<String> rowFilter;
+    private XlsxFormulaBook formulaBook;
+    private int sheetIndex;
+
+    /**
+     * The shared formulas of the sheet, by their shared index.
+     */
+    private HashMap<Integer, FormulaGroup> sharedFormulas;
+    /**
+     * The array formulas of the sheet.
+     */
+    private ArrayList<FormulaGroup> arrayFormulas;
+
+    private ArrayList<String> cells;
+    private StringBuilder value, formula, inlineString;
+    private boolean inValue, inFormula, inInlineString, inPhonetic, skipRow;
+    private String cellType, formulaType, formulaRange;
+    private int styleIndex, row, column, sharedIndex;
+
+    /**
+     * The formula written on the first cell of a shared or array formula,
+     * and the range of cells it applies to.
+     */
+    private static class FormulaGroup {
+
+        private final String text;
+        private final CellRangeAddress range;
+        /**
+         * The parsed formula, null until a cell of the range needs it.
+         */
+        private Ptg[] ptgs;
+        private boolean unparsable;
+
+        private FormulaGroup(String text, CellRangeAddress range) {
+            this.text = text;
+            this.range = range;
+        }
+    }
+
+    /**
+     * @param sharedStrings The shared strings of the workbook.
+     * @param styles The cell styles of the workbook.
+     * @param dataFormatter Used to format non date numeric cells.
+     * @param date1904 Whether the workbook uses the 1904 date windowing.
+     * @param listener Receives the rows as they are read.
+     * @param sharedStringsUsed Collects the index of every shared string the
+     * sheet uses, can be null.
+     */
+    XlsxSheetHandler(ReadOnlySharedStringsTable sharedStrings, XlsxStyleTable styles,
+            DataFormatter dataFormatter, boolean date1904, RowListener listener,
+            BitSet sharedStringsUsed) {
+        this.sharedStrings = sharedStrings;
+        this.styles = styles;
+        this.dataFormatter = dataFormatter;
+        this.date1904 = date1904;
+        this.listener = listener;
+        this.sharedStringsUsed = sharedStringsUsed;
+        value = new StringBuilder();
+        formula = new StringBuilder();
+        inlineString = new StringBuilder();
+        sharedFormulas = new HashMap<>();
+        arrayFormulas = new ArrayList<>();
+        row = -1;
+    }
+
+    /**
+     * @param rowLimit The number of rows after which the parsing stops with a
+     * {@link RowLimitReachedException RowLimitReachedException}, 0 to read
+     * every row.
+     */
+    void setRowLimit(int rowLimit) {
+        this.rowLimit = rowLimit;
+    }
+
+    /**
+     * @param columns The only columns to decode after the first row, the
+     * other cells are left empty. Null to decode every column.
+     */
+    void setColumns(BitSet columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @param rowFilter Tests the value of the first cell of the rows after
+     * the first, the rest of a row that fails it is never decoded and the row
+     * is dropped. Null to keep every row.
+     */
+    void setRowFilter(Predicate<String> rowFilter) {
+        this.rowFilter = rowFilter;
+    }
+
+    /**
+     * @param formulaBook The sheet and defined names of the workbook, used to
+     * shift shared formulas. Null to give the cells of a shared formula other
+     * than the first their cached value instead.
+     * @param sheetIndex The index of the sheet in the workbook.
+     */
+    void setFormulaBook(XlsxFormulaBook formulaBook, int sheetIndex) {
+        this.formulaBook = formulaBook;
+        this.sheetIndex = sheetIndex;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        switch (localName) {
+            case "row":
+                cells = new ArrayList<>();
+                String rowReference = attributes.getValue("r");
+                row = rowReference != null ? Integer.parseInt(rowReference) - 1 : row + 1;
+                column = -1;
+                skipRow = false;
+                break;
+            case "c":
+                String reference = attributes.getValue("r");
+                column = reference != null ? columnIndex(reference) : column + 1;
+                cellType = attributes.getValue("t");
+                String style = attributes.getValue("s");
+                styleIndex = style != null ? Integer.parseInt(style) : 0;
+                value.setLength(0);
+                formula.setLength(0);
+                inlineString.setLength(0);
+                formulaType = null;
+                sharedIndex = -1;
+                break;
+            case "v":
+                inValue = true;
+                break;
+            case "f":
+                inFormula = true;
+                formulaType = attributes.getValue("t");
+                formulaRange = attributes.getValue("ref");
+                String shared = attributes.getValue("si");
+                sharedIndex = "shared".equals(formulaType) && shared != null ? Integer.parseInt(shared) : -1;
+                break;
+            case "is":
+                inInlineString = true;
+                break;
+            case "rPh":
+                inPhonetic = true;
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        switch (localName) {
+            case "v":
+                inValue = false;
+                break;
+            case "f":
+                inFormula = false;
+                // The first cell of a shared or array formula is recorded even
+                // if it isn't decoded, the other cells of its range may be
+                if (formulaRange != null && formula.length() > 0) {
+                    FormulaGroup group = new FormulaGroup(formula.toString(), CellRangeAddress.valueOf(formulaRange));
+                    if (sharedIndex >= 0) {
+                        sharedFormulas.put(sharedIndex, group);
+                    } else if ("array".equals(formulaType)) {
+                        arrayFormulas.add(group);
+                    }
+                }
+                break;
+            case "is":
+                inInlineString = false;
+                break;
+            case "rPh":
+                inPhonetic = false;
+                break;
+            case "c":
+                if (skipRow) {
+                    break;
+                }
+                // Cells outside the projection are never decoded or formatted
+                String cell = columns != null && rowCount > 0 && !columns.get(column) ? null : decodeCell();
+                // The first cell of a row decides whether the rest of it is read
+                if (rowFilter != null && rowCount > 0 && cells.isEmpty()
+                        && (column != 0 || cell == null || !rowFilter.test(cell))) {
+                    skipRow = true;
+                    break;
+                }
+                // Pad the row with empty cells up to this cell's column
+                while (cells.size() < column) {
+                    cells.add(null);
+                }
+                cells.add(cell);
+                break;
+            case "row":
+                // Rows without any cells are skipped, just like in the XSSFWorkbook reading
+                if (!skipRow && !cells.isEmpty()) {
+                    listener.rowRead(cells);
+                    rowCount++;
+                    if (rowCount == rowLimit) {
+                        throw new RowLimitReachedException();
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (inValue) {
+            value.append(ch, start, length);
+        } else if (inFormula) {
+            formula.append(ch, start, length);
+        } else if (inInlineString && !inPhonetic) {
+            inlineString.append(ch, start, length);
+        }
+    }
+
+    /**
+     * Turn the collected contents of the current cell into its String value.
+     * <p>
+     * Formula cells give their formula, as XSSFCell.getCellFormula() does.
+     *
+     * @return The cell value, null if the cell is empty or starts with '--'.
+     */
+    private String decodeCell() {
+        String cell;
+        String cellFormula = cellFormula();
+        if (cellFormula != null) {
+            cell = cellFormula;
+        } else if ("s".equals(cellType)) {
+            int index = Integer.parseInt(value.toString().trim());
+            if (sharedStringsUsed != null) {
+                sharedStringsUsed.set(index);
+            }
+            cell = sharedStrings.getEntryAt(index);
+        } else if ("inlineStr".equals(cellType)) {
+            cell = inlineString.toString();
+        } else if ("str".equals(cellType) || "e".equals(cellType)) {
+            cell = value.toString();
+        } else if ("b".equals(cellType)) {
+            cell = value.length() > 0 && value.charAt(0) == '1' ? "TRUE" : "FALSE";
+        } else if (value.length() == 0) {
+            cell = null;
+        } else {
+            return decodeNumber(Double.parseDouble(value.toString()));
+        }
+
+        // Some Excel entries contained '--' instead of an empty cell
+        // so I had to include this condition for it
+        if (cell == null || cell.isEmpty() || cell.startsWith("--")) {
+            return null;
+        }
+        return cell;
+    }
+
+    /**
+     * Get the formula of the current cell. The cells of a shared formula are
+     * given the formula of the first cell of its range, shifted by their
+     * distance from it, and the cells of an array formula the formula of the
+     * array.
+     * <p>
+     * A shared formula that can't be parsed, I.e: one that uses a table,
+     * leaves its first cell with the formula as written and the other cells
+     * with their cached value.
+     *
+     * @return The formula, null if the cell doesn't have one.
+     */
+    private String cellFormula() {
+        if (sharedIndex >= 0 && formulaBook != null) {
+            FormulaGroup group = sharedFormulas.get(sharedIndex);
+            if (group != null && !group.unparsable) {
+                try {
+                    if (group.ptgs == null) {
+                        group.ptgs = formulaBook.parse(group.text, sheetIndex, row);
+                    }
+                    Ptg[] shifted = new SharedFormula(SpreadsheetVersion.EXCEL2007).convertSharedFormulas(group.ptgs,
+                            row - group.range.getFirstRow(), column - group.range.getFirstColumn());
+                    return formulaBook.render(shifted);
+                } catch (RuntimeException ex) {
+                    group.unparsable = true;
+                    Logger.getLogger(XlsxSheetHandler.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }
+        if (formula.length() > 0) {
+            return formula.toString();
+        }
+        if (sharedIndex < 0) {
+            for (FormulaGroup group : arrayFormulas) {
+                if (group.range.isInRange(row, column)) {
+                    return group.text;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Format a numeric cell, converting dates to the yyyy-mm-dd format and
+     * times to the HH:mm format.
+     *
+     * @param number The raw value of the cell.
+     * @return The formatted value.
+     */
+    private String decodeNumber(double number) {
+        int kind = styles.getKind(styleIndex);
+        if (kind == XlsxStyleTable.GENERAL_NUMBER) {
+            String wholeNumber = formatGeneralWholeNumber(number);
+            if (wholeNumber != null) {
+                return wholeNumber;
+            }
+        } else if ((kind == XlsxStyleTable.DATE || kind == XlsxStyleTable.TIME) && DateUtil.isValidExcelDate(number)) {
+            return XlsxStyleTable.formatDate(number, date1904, kind);
+        }
+        return dataFormatter.formatRawCellContents(number, styles.getFormatIndex(styleIndex),
+                styles.getFormatString(styleIndex), date1904);
+    }
+
+    /**
+     * Format a whole number the way the General format does, without going
+     * through the DataFormatter. Under 1E11 General writes whole numbers as
+     * plain digits, above that it switches to scientific notation.
+     *
+     * @param number The raw value of a cell.
+     * @return The formatted number, null if it isn't a whole number under 1E11.
+     */
+    static String formatGeneralWholeNumber(double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1E11) {
+            return Long.toString((long) number);
+        }
+        return null;
+    }
+
+    /**
+     * @param reference A cell reference such as "AB12".
+     * @return The zero based column index of the reference.
+     */
+    private static int columnIndex(String reference) {
+        int index = 0;
+        for (int i = 0; i < reference.length(); i++) {
+            char c = reference.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            index = index * 26 + (c - 'A' + 1);
+        }
+        return index - 1;
+    }
+}
@@ -0,0 +1,218 @@
+package XlsxParsing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.parsers.ParserConfigurationException;
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * <h1>XLSX cell style table.</h1>
+ * <p>
+ * Reads the number formats of the "xl/styles.xml" part of an XLSX file so that
+ * the streaming reader can resolve a cell's style index to the same data
+ * format index and format string that an XSSFCellStyle would give.
+ * <p>
+ * Every style is also classified once into the kind of number it formats,
+ * the first time a cell of that style is decoded, so the format string of a
+ * style is only ever inspected once per workbook. The table and its
+ * formatters are safe to share between the readers of every sheet.
+ *
+ * @author James Conway
+ * @since 2018-07-18
+ */
+class XlsxStyleTable extends DefaultHandler {
+
+    /**
+     * The kinds of number that a cell style can format.
+     */
+    static final int DATE = 1, TIME = 2, GENERAL_NUMBER = 3, OTHER_NUMBER = 4;
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+    private static final long DAY_MILLISECONDS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Maps the custom number format IDs to their format strings.
+     * <p>
+     * I.e: {formatID : formatString}
+     */
+    private HashMap<Integer, String> customFormats;
+
+    /**
+     * Number format ID of every cell style, in the order of the cellXfs
+     * element.
+     */
+    private ArrayList<Integer> styleToFormat;
+    /**
+     * The kind of number of every style, 0 until a cell of the style has been
+     * decoded. Readers of different sheets can race to fill in the same
+     * style, but they always compute the same kind for it.
+     */
+    private int[] styleToKind;
+
+    private boolean inCellXfs;
+
+    /**
+     * Create a style table holding only the default style.
+     */
+    XlsxStyleTable() {
+        customFormats = new HashMap<>();
+        styleToFormat = new ArrayList<>();
+        styleToKind = new int[0];
+    }
+
+    /**
+     * Create a style table from the styles of a loaded XSSFWorkbook.
+     *
+     * @param wb The workbook.
+     */
+    XlsxStyleTable(XSSFWorkbook wb) {
+        this();
+        for (Map.Entry<Short, String> format : wb.getStylesSource().getNumberFormats().entrySet()) {
+            customFormats.put(format.getKey() & 0xffff, format.getValue());
+        }
+        for (int i = 0; i < wb.getNumCellStyles(); i++) {
+            styleToFormat.add(wb.getCellStyleAt(i).getDataFormat() & 0xffff);
+        }
+        styleToKind = new int[styleToFormat.size()];
+    }
+
+    /**
+     * Parse the styles part of the workbook.
+     *
+     * @param stylesData The contents of "xl/styles.xml", may be null if the
+     * workbook has no styles part.
+     */
+    void read(InputStream stylesData) throws IOException, SAXException, ParserConfigurationException {
+        if (stylesData == null) {
+            return;
+        }
+        try {
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(this);
+            parser.parse(new InputSource(stylesData));
+        } finally {
+            stylesData.close();
+        }
+        styleToKind = new int[styleToFormat.size()];
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if ("numFmt".equals(localName)) {
+            customFormats.put(Integer.parseInt(attributes.getValue("numFmtId")), attributes.getValue("formatCode"));
+        } else if ("cellXfs".equals(localName)) {
+            inCellXfs = true;
+        } else if (inCellXfs && "xf".equals(localName)) {
+            String formatID = attributes.getValue("numFmtId");
+            styleToFormat.add(formatID == null ? 0 : Integer.parseInt(formatID));
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if ("cellXfs".equals(localName)) {
+            inCellXfs = false;
+        }
+    }
+
+    /**
+     * @param styleIndex The "s" attribute of a cell.
+     * @return The data format index of the style.
+     */
+    int getFormatIndex(int styleIndex) {
+        if (styleIndex < 0 || styleIndex >= styleToFormat.size()) {
+            return 0;
+        }
+        return styleToFormat.get(styleIndex);
+    }
+
+    /**
+     * @param styleIndex The "s" attribute of a cell.
+     * @return The data format string of the style, "General" if it has none.
+     */
+    String getFormatString(int styleIndex) {
+        int formatIndex = getFormatIndex(styleIndex);
+        String formatString = customFormats.get(formatIndex);
+        if (formatString == null) {
+            formatString = BuiltinFormats.getBuiltinFormat(formatIndex);
+        }
+        if (formatString == null) {
+            formatString = BuiltinFormats.getBuiltinFormat(0);
+        }
+        return formatString;
+    }
+
+    /**
+     * @param styleIndex The "s" attribute of a cell.
+     * @return The kind of number the style formats.
+     */
+    int getKind(int styleIndex) {
+        if (styleIndex < 0 || styleIndex >= styleToKind.length) {
+            return kindOf(getFormatIndex(styleIndex), getFormatString(styleIndex));
+        }
+        int kind = styleToKind[styleIndex];
+        if (kind == 0) {
+            kind = kindOf(getFormatIndex(styleIndex), getFormatString(styleIndex));
+            styleToKind[styleIndex] = kind;
+        }
+        return kind;
+    }
+
+    /**
+     * @param formatIndex The data format index of a style.
+     * @param formatString The data format string of the style.
+     * @return The kind of number the format formats.
+     */
+    private static int kindOf(int formatIndex, String formatString) {
+        if (DateUtil.isADateFormat(formatIndex, formatString)) {
+            // If this format mentions hours then it must be a Time format
+            return formatString.toLowerCase().contains("h") ? TIME : DATE;
+        }
+        return formatIndex == 0 ? GENERAL_NUMBER : OTHER_NUMBER;
+    }
+
+    /**
+     * Format the value of a date or time cell, in the yyyy-mm-dd format for
+     * dates and the HH:mm format for times.
+     * <p>
+     * The Excel serial date is converted the same way as DateUtil.getJavaDate,
+     * but straight to a local date and time, so the shared DateTimeFormatters
+     * can be used instead of a SimpleDateFormat per reader.
+     *
+     * @param number The raw value of the cell, a valid Excel date.
+     * @param date1904 Whether the workbook uses the 1904 date windowing.
+     * @param kind {@link #DATE DATE} or {@link #TIME TIME}.
+     * @return The formatted value.
+     */
+    static String formatDate(double number, boolean date1904, int kind) {
+        int wholeDays = (int) Math.floor(number);
+        long millisecondsInDay = (long) ((number - wholeDays) * DAY_MILLISECONDS + 0.5);
+        LocalDate start;
+        int dayAdjust;
+        if (date1904) {
+            // The 1904 date windowing uses 1904-01-02 as its first day
+            start = LocalDate.of(1904, 1, 1);
+            dayAdjust = 1;
+        } else {
+            // Excel thinks 1900-02-29 exists, so only the days before it line up
+            start = LocalDate.of(1900, 1, 1);
+            dayAdjust = wholeDays < 61 ? 0 : -1;
+        }
+        return (kind == TIME ? TIME_FORMAT : DATE_FORMAT).format(
+                start.plusDays(wholeDays + dayAdjust - 1).atStartOfDay().plusNanos(millisecondsInDay * 1000000L));
+    }
+}
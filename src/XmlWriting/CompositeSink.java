@@ -0,0 +1,105 @@
+package XmlWriting;
+
+import java.util.Set;
+
+/**
+ * <h1>Output sink that writes several formats at once.</h1>
+ * <p>
+ * Passes every call of the {@link XmlConverter XmlConverter} on to each of
+ * its sinks in turn, so that the Excel data is read and converted once
+ * whatever the number of files written. I.e: an
+ * {@link OdmByteWriter OdmByteWriter}, a {@link RedcapCsvSink RedcapCsvSink}
+ * and a {@link JsonLinesSink JsonLinesSink}.
+ * <p>
+ * A forked composite holds a fork of every sink, so a patient is still only
+ * converted once, and joining it joins each fork back into its own sink.
+ *
+ * @author James Conway
+ * @since 2018-07-19
+ */
+public class CompositeSink implements OutputSink {
+
+    private final OutputSink[] sinks;
+
+    /**
+     * @param sinks The sinks to write to, in the order they are called.
+     */
+    public CompositeSink(OutputSink... sinks) {
+        this.sinks = sinks;
+    }
+
+    @Override
+    public void createDocument(Set<String> repeatingEvents, Set<String> repeatingForms) {
+        for (OutputSink sink : sinks) {
+            sink.createDocument(repeatingEvents, repeatingForms);
+        }
+    }
+
+    @Override
+    public void createSubjectData(String patientID) {
+        for (OutputSink sink : sinks) {
+            sink.createSubjectData(patientID);
+        }
+    }
+
+    @Override
+    public void createStudyEventData(String event, int repeatKey) {
+        for (OutputSink sink : sinks) {
+            sink.createStudyEventData(event, repeatKey);
+        }
+    }
+
+    @Override
+    public void createFormData(String form, int repeatKey) {
+        for (OutputSink sink : sinks) {
+            sink.createFormData(form, repeatKey);
+        }
+    }
+
+    @Override
+    public void createItemData(String variable, String form, boolean createGroupData, String value) {
+        for (OutputSink sink : sinks) {
+            sink.createItemData(variable, form, createGroupData, value);
+        }
+    }
+
+    @Override
+    public void saveDocument() {
+        for (OutputSink sink : sinks) {
+            sink.saveDocument();
+        }
+    }
+
+    /**
+     * @return Whether every sink can fork.
+     */
+    @Override
+    public boolean canFork() {
+        for (OutputSink sink : sinks) {
+            if (!sink.canFork()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return A composite of a fork of every sink.
+     */
+    @Override
+    public OutputSink fork() {
+        OutputSink[] forks = new OutputSink[sinks.length];
+        for (int i = 0; i < sinks.length; i++) {
+            forks[i] = sinks[i].fork();
+        }
+        return new CompositeSink(forks);
+    }
+
+    @Override
+    public void join(OutputSink subjectSink) {
+        OutputSink[] forks = ((CompositeSink) subjectSink).sinks;
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i].join(forks[i]);
+        }
+    }
+}
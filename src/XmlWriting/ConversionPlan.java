@@ -0,0 +1,278 @@
+package XmlWriting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <h1>Compiled field to variable mapping for the XmlConverter.</h1>
+ * <p>
+ * The user's sheet, field and variable choices never change during a
+ * conversion, so instead of searching through every sheet and field of the
+ * {@link GUI.Utils.MenuTracker MenuTracker} mapping for every ItemData, they
+ * are compiled once into arrays and each chosen variable of a form is resolved
+ * to the {@link Slot Slot} (sheet and field) its value is read from.
+ * <p>
+ * Which field a variable resolves to still depends on which sheets a patient
+ * has data in, as sheets without data are skipped. The resolved slots are
+ * therefore kept for every combination of sheets met so far, which is usually
+ * only a handful for a whole Excel file.
+ * <p>
+ * The default values of the unchosen variables of every form are compiled
+ * once too, as they are the same for every FormData of the form.
+ *
+ * @author James Conway
+ * @since 2018-07-19
+ */
+class ConversionPlan {
+
+    /**
+     * The sheets of the mapping, in the order they were chosen.
+     */
+    private final String[] sheets;
+    /**
+     * The fields of every sheet and the variable each of them maps to.
+     * <p>
+     * I.e: fields[sheet][i] maps to variables[sheet][i]
+     */
+    private final String[][] fields, variables;
+    /**
+     * The chosen variables of every form.
+     * <p>
+     * I.e: {form : [variable]}
+     */
+    private final HashMap<String, String[]> formToVariables;
+    private final HashMap<String, Integer> formToOccurence;
+    /**
+     * The unchosen variables of every form that have a default value.
+     * <p>
+     * I.e: {form : [default item]}
+     */
+    private final HashMap<String, DefaultItem[]> formToDefaults;
+
+    /**
+     * The resolved slots of every form, for every combination of sheets with
+     * patient data.
+     * <p>
+     * I.e: {form : {sheets with data : slots}}
+     */
+    private final HashMap<String, ConcurrentHashMap<BitSet, Slot[][]>> formToColumnSlots;
+    private final HashMap<String, ConcurrentHashMap<BitSet, Slot[]>> formToRowSlots;
+
+    /**
+     * The sheet and field that the value of a variable is read from.
+     */
+    static final class Slot {
+
+        final int sheet;
+        final String sheetName;
+        final String field;
+
+        private Slot(int sheet, String sheetName, String field) {
+            this.sheet = sheet;
+            this.sheetName = sheetName;
+            this.field = field;
+        }
+    }
+
+    /**
+     * An unchosen variable and the default value it is written with.
+     */
+    static final class DefaultItem {
+
+        final String variable;
+        final String value;
+
+        private DefaultItem(String variable, String value) {
+            this.variable = variable;
+            this.value = value;
+        }
+    }
+
+    /**
+     * @param sheetToFieldToVariable The user's field to variable choices of
+     * every sheet.
+     * @param formToVariables The user's chosen variables of every form.
+     * @param formToOccurence How many times each form repeats across columns,
+     * can be null when converting repeating rows.
+     */
+    ConversionPlan(LinkedHashMap<String, LinkedHashMap> sheetToFieldToVariable,
+            HashMap<String, ArrayList> formToVariables, HashMap<String, Integer> formToOccurence) {
+        sheets = new String[sheetToFieldToVariable.size()];
+        fields = new String[sheets.length][];
+        variables = new String[sheets.length][];
+        int i = 0;
+        for (String sheet : sheetToFieldToVariable.keySet()) {
+            LinkedHashMap<String, String> fieldToVariable = sheetToFieldToVariable.get(sheet);
+            sheets[i] = sheet;
+            fields[i] = fieldToVariable.keySet().toArray(new String[fieldToVariable.size()]);
+            variables[i] = fieldToVariable.values().toArray(new String[fieldToVariable.size()]);
+            i++;
+        }
+
+        this.formToVariables = new HashMap<>();
+        formToColumnSlots = new HashMap<>();
+        formToRowSlots = new HashMap<>();
+        for (String form : formToVariables.keySet()) {
+            ArrayList<String> chosenVariables = formToVariables.get(form);
+            this.formToVariables.put(form, chosenVariables.toArray(new String[chosenVariables.size()]));
+            formToColumnSlots.put(form, new ConcurrentHashMap<>());
+            formToRowSlots.put(form, new ConcurrentHashMap<>());
+        }
+        this.formToOccurence = formToOccurence;
+        formToDefaults = new HashMap<>();
+    }
+
+    /**
+     * Compile the default values of the unchosen variables of every chosen
+     * form. The Data Dictionary's lists are only read, never modified.
+     *
+     * @param formToAllVariables Every variable of every form, from the Data
+     * Dictionary.
+     * @param variableToDefault The default value of the variables that have
+     * one.
+     */
+    void compileDefaults(HashMap<String, ArrayList> formToAllVariables, HashMap<String, String> variableToDefault) {
+        for (String form : formToVariables.keySet()) {
+            HashSet<String> chosenVariables = new HashSet<>(Arrays.asList(formToVariables.get(form)));
+            ArrayList<DefaultItem> defaults = new ArrayList<>();
+            ArrayList<String> allVariables = formToAllVariables.get(form);
+            if (allVariables != null) {
+                for (String variable : allVariables) {
+                    String value = variableToDefault.get(variable);
+                    if (value != null && !chosenVariables.contains(variable)) {
+                        defaults.add(new DefaultItem(variable, value));
+                    }
+                }
+            }
+            formToDefaults.put(form, defaults.toArray(new DefaultItem[defaults.size()]));
+        }
+    }
+
+    /**
+     * @param form A chosen form.
+     * @return The unchosen variables of the form that have a default value,
+     * empty if the defaults weren't compiled.
+     */
+    DefaultItem[] getDefaults(String form) {
+        DefaultItem[] defaults = formToDefaults.get(form);
+        return defaults != null ? defaults : new DefaultItem[0];
+    }
+
+    /**
+     * @param form A chosen form.
+     * @return The chosen variables of the form, in the order of the slots.
+     */
+    String[] getVariables(String form) {
+        return formToVariables.get(form);
+    }
+
+    /**
+     * @param form A chosen form.
+     * @return How many times the form repeats across columns, 1 when
+     * converting repeating rows.
+     */
+    int getOccurence(String form) {
+        return formToOccurence != null ? formToOccurence.getOrDefault(form, 1) : 1;
+    }
+
+    /**
+     * Arrange a patient's parsed data by the sheet indices of the plan.
+     *
+     * @param sheetToFields The patient's data from the
+     * {@link XlsxParsing.ExcelParser ExcelParser}, I.e: {sheet : {field : value(s)}}
+     * @return The data of every sheet of the plan, null for sheets without
+     * data.
+     */
+    LinkedHashMap[] arrangeSheets(LinkedHashMap<String, LinkedHashMap> sheetToFields) {
+        LinkedHashMap[] sheetData = new LinkedHashMap[sheets.length];
+        for (int i = 0; i < sheets.length; i++) {
+            sheetData[i] = sheetToFields.get(sheets[i]);
+        }
+        return sheetData;
+    }
+
+    /**
+     * Resolve the slots of a form when the Excel contains repeating values
+     * across columns.
+     * <p>
+     * Every occurrence of a variable takes the first field mapped to it which
+     * is on a sheet with data and hasn't been taken by a previous occurrence
+     * of the form.
+     *
+     * @param form A chosen form.
+     * @param sheetData The patient's data from {@link #arrangeSheets arrangeSheets}.
+     * @return The slot of every variable of every occurrence of the form,
+     * I.e: slots[occurrence][variable], null where no field was found.
+     */
+    Slot[][] repeatingColumnsSlots(String form, LinkedHashMap[] sheetData) {
+        return formToColumnSlots.get(form).computeIfAbsent(sheetsWithData(sheetData), present -> {
+            String[] chosenVariables = formToVariables.get(form);
+            Slot[][] slots = new Slot[formToOccurence.get(form)][chosenVariables.length];
+            HashSet<String> visitedFields = new HashSet<>();
+            for (int i = 0; i < slots.length; i++) {
+                for (int j = 0; j < chosenVariables.length; j++) {
+                    slots[i][j] = findSlot(chosenVariables[j], present, visitedFields);
+                    visitedFields.add(slots[i][j] != null ? slots[i][j].field : null);
+                }
+            }
+            return slots;
+        });
+    }
+
+    /**
+     * Resolve the slots of a form when the Excel contains repeating values
+     * across rows.
+     * <p>
+     * Every variable takes the first field mapped to it which is on a sheet
+     * with data.
+     *
+     * @param form A chosen form.
+     * @param sheetData The patient's data from {@link #arrangeSheets arrangeSheets}.
+     * @return The slot of every variable of the form, null where no field was
+     * found.
+     */
+    Slot[] repeatingRowsSlots(String form, LinkedHashMap[] sheetData) {
+        return formToRowSlots.get(form).computeIfAbsent(sheetsWithData(sheetData), present -> {
+            String[] chosenVariables = formToVariables.get(form);
+            Slot[] slots = new Slot[chosenVariables.length];
+            HashSet<String> visitedFields = new HashSet<>();
+            for (int j = 0; j < chosenVariables.length; j++) {
+                slots[j] = findSlot(chosenVariables[j], present, visitedFields);
+            }
+            return slots;
+        });
+    }
+
+    /**
+     * @param variable The variable to find.
+     * @param present The sheets with patient data.
+     * @param visitedFields Fields that can't be taken any more.
+     * @return The first field mapped to the variable on a sheet with data
+     * that hasn't been visited, null if there is none.
+     */
+    private Slot findSlot(String variable, BitSet present, HashSet<String> visitedFields) {
+        for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+            for (int j = 0; j < fields[i].length; j++) {
+                if (variables[i][j].equals(variable) && !visitedFields.contains(fields[i][j])) {
+                    return new Slot(i, sheets[i], fields[i][j]);
+                }
+            }
+        }
+        return null;
+    }
+
+    private BitSet sheetsWithData(LinkedHashMap[] sheetData) {
+        BitSet present = new BitSet(sheetData.length);
+        for (int i = 0; i < sheetData.length; i++) {
+            if (sheetData[i] != null) {
+                present.set(i);
+            }
+        }
+        return present;
+    }
+}
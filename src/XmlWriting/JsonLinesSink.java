@@ -0,0 +1,241 @@
+package XmlWriting;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+
+/**
+ * <h1>JSON Lines file writer.</h1>
+ * <p>
+ * Writes every SubjectData as a JSON object on its own line, with the same
+ * structure as the ODM XML file. Empty cells are written as empty strings,
+ * and values that have no cell at all, I.e: a variable without a field for an
+ * occurrence of a repeating columns form, are written as null.
+ * <p>
+ * I.e: {"subject": patientID, "events": [{"event": event, "repeatKey": 1,
+ * "forms": [{"form": form, "repeatKey": 1, "items": {variable: value}}]}]}
+ * <p>
+ * The line of a SubjectData is built in a StringBuilder and written out once
+ * the next SubjectData is created. A forked sink keeps the line of its single
+ * SubjectData, which is appended to the file when it is joined.
+ *
+ * @author James Conway
+ * @since 2018-07-19
+ */
+public class JsonLinesSink implements OutputSink {
+
+    private File jsonFile;
+    /**
+     * The file writer, never set for a forked sink.
+     */
+    private Writer out;
+    /**
+     * The line of the current SubjectData.
+     */
+    private StringBuilder line;
+    /**
+     * Set once writing failed, after which nothing else is written.
+     */
+    private boolean failed;
+
+    // Which objects of the current line are open, and whether they have any
+    // members yet
+    private boolean inSubject, inEvent, inForm;
+    private boolean hasEvents, hasForms, hasItems;
+
+    /**
+     * @param jsonFile The file to be written to.
+     */
+    public JsonLinesSink(File jsonFile) {
+        this.jsonFile = jsonFile;
+        line = new StringBuilder();
+    }
+
+    @Override
+    public void createDocument(Set<String> repeatingEvents, Set<String> repeatingForms) {
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(jsonFile), StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public void createSubjectData(String patientID) {
+        endSubject();
+        line.append("{\"subject\":");
+        appendString(patientID);
+        line.append(",\"events\":[");
+        inSubject = true;
+        hasEvents = false;
+    }
+
+    @Override
+    public void createStudyEventData(String event, int repeatKey) {
+        endEvent();
+        line.append(hasEvents ? ",{\"event\":" : "{\"event\":");
+        appendString(event);
+        line.append(",\"repeatKey\":").append(repeatKey).append(",\"forms\":[");
+        inEvent = true;
+        hasEvents = true;
+        hasForms = false;
+    }
+
+    @Override
+    public void createFormData(String form, int repeatKey) {
+        endForm();
+        line.append(hasForms ? ",{\"form\":" : "{\"form\":");
+        appendString(form);
+        line.append(",\"repeatKey\":").append(repeatKey).append(",\"items\":{");
+        inForm = true;
+        hasForms = true;
+        hasItems = false;
+    }
+
+    @Override
+    public void createItemData(String variable, String form, boolean createGroupData, String value) {
+        if (hasItems) {
+            line.append(',');
+        }
+        appendString(variable);
+        line.append(':');
+        appendString(value);
+        hasItems = true;
+    }
+
+    @Override
+    public void saveDocument() {
+        endSubject();
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public boolean canFork() {
+        return true;
+    }
+
+    @Override
+    public OutputSink fork() {
+        return new JsonLinesSink(null);
+    }
+
+    @Override
+    public void join(OutputSink subjectSink) {
+        JsonLinesSink subject = (JsonLinesSink) subjectSink;
+        subject.endSubject();
+        endSubject();
+        if (failed) {
+            return;
+        }
+        try {
+            out.append(subject.line);
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    private void endForm() {
+        if (inForm) {
+            line.append("}}");
+            inForm = false;
+        }
+    }
+
+    private void endEvent() {
+        endForm();
+        if (inEvent) {
+            line.append("]}");
+            inEvent = false;
+        }
+    }
+
+    /**
+     * Close the line of the current SubjectData, and write it out unless this
+     * is a forked sink.
+     */
+    private void endSubject() {
+        endEvent();
+        if (!inSubject) {
+            return;
+        }
+        line.append("]}\n");
+        inSubject = false;
+        // A forked sink has no file, its line is appended when it is joined
+        if (jsonFile == null) {
+            return;
+        }
+        try {
+            if (!failed && out != null) {
+                out.append(line);
+            }
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+        line.setLength(0);
+    }
+
+    /**
+     * Append a JSON string, with its special characters escaped.
+     *
+     * @param text The text of the string, null for a JSON null.
+     */
+    private void appendString(String text) {
+        if (text == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+                    break;
+            }
+        }
+        line.append('"');
+    }
+
+    private void reportException(IOException ex) {
+        if (!failed) {
+            failed = true;
+            Alert alert = new Alert(Alert.AlertType.ERROR, "IOException: " + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+        }
+        Logger.getLogger(JsonLinesSink.class.getName()).log(Level.SEVERE, null, ex);
+    }
+}
@@ -0,0 +1,499 @@
+package XmlWriting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+
+/**
+ * <h1>Byte template ODM XML file writer.</h1>
+ * <p>
+ * Writes the same ODM XML file as {@link XmlStreamingWriter XmlStreamingWriter}
+ * without going through an XML library. Apart from the patientIDs and the
+ * values, everything written for an element only depends on its event, form
+ * or variable, so it is encoded to UTF-8 once into a byte template the first
+ * time it is met. I.e: the "&lt;ItemData ItemOID="variable" Value="" start of
+ * every ItemData of a variable.
+ * <p>
+ * The templates, repeat keys and escaped values are put straight into a
+ * direct ByteBuffer that is written out to the file's FileChannel whenever it
+ * fills up, so writing an element creates no Strings or other garbage.
+ * <p>
+ * A forked writer shares the templates and puts a single SubjectData element
+ * into a growing heap ByteBuffer instead, which is copied into the file
+ * buffer when it is joined.
+ *
+ * @author James Conway
+ * @since 2018-07-18
+ */
+public class OdmByteWriter implements OutputSink {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int FORK_BUFFER_SIZE = 1 << 12;
+
+    private static final byte[] DOCUMENT_START = bytes("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    private static final byte[] ODM_START = bytes("<ODM xmlns=\"http://www.cdisc.org/ns/odm/v1.3\""
+            + " xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+            + " xmlns:redcap=\"https://projectredcap.org\""
+            + " xsi:schemaLocation=\"http://www.cdisc.org/ns/odm/v1.3 schema/odm/ODM1-3-1.xsd\""
+            + " ODMVersion=\"1.3.1\" FileOID=\"000-00-0000\" FileType=\"Snapshot\" Description=\"PMT\""
+            + " AsOfDateTime=\"#\" CreationDateTime=\"#\" SourceSystem=\"REDCap\" SourceSystemVersion=\"8.4.2\">");
+    private static final byte[] CLINICAL_DATA_START = bytes("<ClinicalData StudyOID=\"Project.PMT\">");
+    private static final byte[] SUBJECT_DATA_START = bytes("<SubjectData SubjectKey=\"");
+    private static final byte[] START_END = bytes("\">");
+    private static final byte[] EMPTY_END = bytes("\"/>");
+
+    /**
+     * The end tag of the element at every depth.
+     */
+    private static final byte[][] END_TAGS = {bytes("</ODM>"), bytes("</ClinicalData>"),
+        bytes("</SubjectData>"), bytes("</StudyEventData>"), bytes("</FormData>"), bytes("</ItemGroupData>")};
+
+    /**
+     * The depth of every element, the number of elements still open once it
+     * has been started.
+     */
+    private static final int CLINICAL_DATA = 2, SUBJECT_DATA = 3, STUDY_EVENT_DATA = 4, FORM_DATA = 5;
+
+    private File xmlFile;
+    /**
+     * The channel of the XML file, null for a forked writer.
+     */
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    /**
+     * The line break and indentation written before an element at every
+     * depth, empty when not indenting.
+     */
+    private byte[][] indents;
+    private byte[] digits = new byte[11];
+
+    /**
+     * The byte templates of every event, form and variable, shared with the
+     * forked writers.
+     * <p>
+     * I.e: {event : [start before repeat key, start after repeat key]}
+     */
+    private ConcurrentHashMap<String, byte[][]> eventTemplates;
+    private ConcurrentHashMap<String, byte[][]> formTemplates;
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>> formToGroupTemplates;
+    private ConcurrentHashMap<String, byte[]> itemTemplates;
+
+    /**
+     * The number of currently open elements.
+     */
+    private int depth;
+    /**
+     * Whether the last written element was a start tag, so that empty
+     * elements are closed on the same line.
+     */
+    private boolean openedLast;
+    /**
+     * Set once writing failed, after which nothing else is written.
+     */
+    private boolean failed;
+
+    /**
+     * @param xmlFile The file to be written to.
+     * @param indent Whether to indent the elements by 2 spaces per level.
+     */
+    public OdmByteWriter(File xmlFile, boolean indent) {
+        this.xmlFile = xmlFile;
+        indents = new byte[END_TAGS.length + 1][];
+        StringBuilder indentation = new StringBuilder(System.lineSeparator());
+        for (int i = 0; i < indents.length; i++) {
+            indents[i] = indent ? bytes(indentation.toString()) : new byte[0];
+            indentation.append("  ");
+        }
+        eventTemplates = new ConcurrentHashMap<>();
+        formTemplates = new ConcurrentHashMap<>();
+        formToGroupTemplates = new ConcurrentHashMap<>();
+        itemTemplates = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Create a forked writer, inside the ClinicalData element of its parent.
+     *
+     * @param parent The writer of the XML file.
+     */
+    private OdmByteWriter(OdmByteWriter parent) {
+        indents = parent.indents;
+        eventTemplates = parent.eventTemplates;
+        formTemplates = parent.formTemplates;
+        formToGroupTemplates = parent.formToGroupTemplates;
+        itemTemplates = parent.itemTemplates;
+        buffer = ByteBuffer.allocate(FORK_BUFFER_SIZE);
+        depth = CLINICAL_DATA;
+    }
+
+    @Override
+    public void createDocument(Set<String> repeatingEvents, Set<String> repeatingForms) {
+        try {
+            channel = FileChannel.open(xmlFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            put(DOCUMENT_START);
+            startElement(ODM_START);
+            startElement(CLINICAL_DATA_START);
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public void createSubjectData(String patientID) {
+        if (failed) {
+            return;
+        }
+        try {
+            closeElements(CLINICAL_DATA);
+            startElement(SUBJECT_DATA_START);
+            putEscaped(patientID);
+            put(START_END);
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public void createStudyEventData(String event, int repeatKey) {
+        if (failed) {
+            return;
+        }
+        try {
+            byte[][] template = eventTemplates.get(event);
+            if (template == null) {
+                template = eventTemplates.computeIfAbsent(event, key -> new byte[][]{
+                    bytes("<StudyEventData StudyEventOID=\"Event." + escape(key) + "\" StudyEventRepeatKey=\""),
+                    bytes("\" redcap:UniqueEventName=\"" + escape(key) + "\">")});
+            }
+            closeElements(SUBJECT_DATA);
+            startElement(template[0]);
+            putInt(repeatKey);
+            put(template[1]);
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public void createFormData(String form, int repeatKey) {
+        if (failed) {
+            return;
+        }
+        try {
+            byte[][] template = formTemplates.get(form);
+            if (template == null) {
+                template = formTemplates.computeIfAbsent(form, key -> new byte[][]{
+                    bytes("<FormData FormOID=\"Form." + escape(key) + "\" FormRepeatKey=\""),
+                    START_END});
+            }
+            closeElements(STUDY_EVENT_DATA);
+            startElement(template[0]);
+            putInt(repeatKey);
+            put(template[1]);
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public void createItemData(String variable, String form, boolean createGroupData, String value) {
+        if (failed) {
+            return;
+        }
+        try {
+            // If a new ItemGroupData element needs to be created to encase the following ItemData elements
+            // then close the previous one and start it
+            if (createGroupData) {
+                ConcurrentHashMap<String, byte[]> groupTemplates = formToGroupTemplates.get(form);
+                if (groupTemplates == null) {
+                    groupTemplates = formToGroupTemplates.computeIfAbsent(form, key -> new ConcurrentHashMap<>());
+                }
+                byte[] groupTemplate = groupTemplates.get(variable);
+                if (groupTemplate == null) {
+                    groupTemplate = groupTemplates.computeIfAbsent(variable,
+                            key -> bytes("<ItemGroupData ItemGroupOID=\"" + escape(form + "." + key) + "\" ItemGroupRepeatKey=\"1\">"));
+                }
+                closeElements(FORM_DATA);
+                startElement(groupTemplate);
+            }
+
+            byte[] itemTemplate = itemTemplates.get(variable);
+            if (itemTemplate == null) {
+                itemTemplate = itemTemplates.computeIfAbsent(variable,
+                        key -> bytes("<ItemData ItemOID=\"" + escape(key) + "\" Value=\""));
+            }
+            put(indents[depth]);
+            put(itemTemplate);
+            if (value != null) {
+                putEscaped(value);
+            }
+            put(EMPTY_END);
+            openedLast = false;
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public void saveDocument() {
+        try {
+            if (failed) {
+                return;
+            }
+            closeElements(0);
+            flush();
+        } catch (IOException ex) {
+            reportException(ex);
+        } finally {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ex) {
+                reportException(ex);
+            }
+        }
+    }
+
+    @Override
+    public boolean canFork() {
+        return true;
+    }
+
+    @Override
+    public OutputSink fork() {
+        return new OdmByteWriter(this);
+    }
+
+    @Override
+    public void join(OutputSink subjectWriter) {
+        OdmByteWriter subject = (OdmByteWriter) subjectWriter;
+        if (failed || subject.failed) {
+            return;
+        }
+        try {
+            subject.closeElements(CLINICAL_DATA);
+            ByteBuffer subjectData = subject.buffer;
+            subjectData.flip();
+            if (!subjectData.hasRemaining()) {
+                return;
+            }
+            closeElements(CLINICAL_DATA);
+            if (subjectData.remaining() > buffer.remaining()) {
+                flush();
+            }
+            if (subjectData.remaining() > buffer.remaining()) {
+                while (subjectData.hasRemaining()) {
+                    channel.write(subjectData);
+                }
+            } else {
+                buffer.put(subjectData);
+            }
+            openedLast = false;
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    private void startElement(byte[] start) throws IOException {
+        put(indents[depth]);
+        put(start);
+        depth++;
+        openedLast = true;
+    }
+
+    /**
+     * Close the open elements until only the given number of them is left.
+     *
+     * @param level The number of elements to keep open.
+     */
+    private void closeElements(int level) throws IOException {
+        while (depth > level) {
+            depth--;
+            if (!openedLast) {
+                put(indents[depth]);
+            }
+            put(END_TAGS[depth]);
+            openedLast = false;
+        }
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            makeRoom(bytes.length);
+            // Templates are never this long, but a value could be
+            if (bytes.length > buffer.remaining()) {
+                ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+                while (wrapped.hasRemaining()) {
+                    channel.write(wrapped);
+                }
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    private void putInt(int number) throws IOException {
+        if (buffer.remaining() < digits.length) {
+            makeRoom(digits.length);
+        }
+        if (number < 0) {
+            buffer.put((byte) '-');
+            number = -number;
+        }
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' + number % 10);
+            number /= 10;
+        } while (number > 0);
+        while (length > 0) {
+            buffer.put(digits[--length]);
+        }
+    }
+
+    /**
+     * Escape an attribute value and encode it to UTF-8 straight into the
+     * buffer. ASCII characters that need no escaping, which are nearly all of
+     * them, are put as they are.
+     *
+     * @param value The attribute value.
+     */
+    private void putEscaped(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            // Room for the longest escape or UTF-8 sequence of a character
+            if (buffer.remaining() < 6) {
+                makeRoom(6);
+            }
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '&':
+                        putAscii("&amp;");
+                        break;
+                    case '<':
+                        putAscii("&lt;");
+                        break;
+                    case '>':
+                        putAscii("&gt;");
+                        break;
+                    case '"':
+                        putAscii("&quot;");
+                        break;
+                    case '\n':
+                        putAscii("&#10;");
+                        break;
+                    case '\r':
+                        putAscii("&#13;");
+                        break;
+                    case '\t':
+                        putAscii("&#9;");
+                        break;
+                    default:
+                        buffer.put((byte) c);
+                        break;
+                }
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates can't be encoded, as with the String encoder
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void putAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Make room in the buffer for the given number of bytes, by writing it
+     * out to the file or, for a forked writer, by growing it.
+     *
+     * @param length The number of bytes to be put.
+     */
+    private void makeRoom(int length) throws IOException {
+        if (channel != null) {
+            flush();
+        } else {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @param text An attribute value to put in a template.
+     * @return The value with its XML special characters escaped.
+     */
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                default:
+                    escaped.append(c);
+                    break;
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void reportException(IOException ex) {
+        if (!failed) {
+            failed = true;
+            Alert alert = new Alert(Alert.AlertType.ERROR, "IOException: " + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+        }
+        Logger.getLogger(OdmByteWriter.class.getName()).log(Level.SEVERE, null, ex);
+    }
+}
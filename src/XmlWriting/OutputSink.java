@@ -0,0 +1,105 @@
+package XmlWriting;
+
+import java.util.Set;
+
+/**
+ * <h1>Output of the XmlConverter.</h1>
+ * <p>
+ * The {@link XmlWriting.XmlConverter XmlConverter} creates the elements of the
+ * ODM XML structure in document order, every element being appended to the
+ * last created element of its parent type. I.e: a FormData element goes into
+ * the last created StudyEventData element. A sink receives these calls and
+ * writes them out in its own format, either building the whole document in
+ * memory, like {@link XmlWriter XmlWriter}, or writing it out as it goes, like
+ * {@link OdmByteWriter OdmByteWriter}, {@link RedcapCsvSink RedcapCsvSink} and
+ * {@link JsonLinesSink JsonLinesSink}. A {@link CompositeSink CompositeSink}
+ * passes every call on to several sinks, so that a single conversion writes
+ * every format.
+ *
+ * @author James Conway
+ * @since 2018-07-18
+ */
+public interface OutputSink {
+
+    /**
+     * Create an "ODM" root element and append a "ClinicalData" element to it.
+     * <p>
+     * Which events and forms repeat is decided by the conversion, not by the
+     * data of a patient, I.e: a repeating form that a patient has a single
+     * FormData element of still repeats.
+     *
+     * @param repeatingEvents The chosen events that can have more than one
+     * StudyEventData element.
+     * @param repeatingForms The chosen forms that can have more than one
+     * FormData element in a StudyEventData element.
+     */
+    void createDocument(Set<String> repeatingEvents, Set<String> repeatingForms);
+
+    /**
+     * Create a "SubjectData" element and assign the patientID to it.
+     *
+     * @param patientID
+     */
+    void createSubjectData(String patientID);
+
+    /**
+     * Create a "StudyEventData" element in the last "SubjectData" element and
+     * assign the event to it.
+     *
+     * @param event
+     * @param repeatKey
+     */
+    void createStudyEventData(String event, int repeatKey);
+
+    /**
+     * Create a "FormData" element in the last "StudyEventData" element and
+     * assign the form and repeatKey to it.
+     *
+     * @param form
+     * @param repeatKey
+     */
+    void createFormData(String form, int repeatKey);
+
+    /**
+     * Create a "GroupData" element (if (createGroupData)) in the last
+     * "FormData" element and append an "ItemData" to the "GroupData" element.
+     *
+     * @param variable
+     * @param form
+     * @param createGroupData
+     * @param value
+     */
+    void createItemData(String variable, String form, boolean createGroupData, String value);
+
+    /**
+     * Save the output file.
+     */
+    void saveDocument();
+
+    /**
+     * @return Whether this sink can {@link #fork fork}, I.e: whether its
+     * patients can be converted in parallel.
+     */
+    boolean canFork();
+
+    /**
+     * Create a sink that a single SubjectData element can be created with on
+     * another thread, to be {@link #join joined} back into this sink.
+     * <p>
+     * Forks may be created and used concurrently with each other, but only
+     * this sink's own thread may join them.
+     *
+     * @return The forked sink.
+     * @throws UnsupportedOperationException If this sink can't fork.
+     */
+    OutputSink fork();
+
+    /**
+     * Append the SubjectData element created with a forked sink after the
+     * last SubjectData element of this sink.
+     *
+     * @param subjectSink A sink returned by this sink's {@link #fork fork}.
+     * @throws UnsupportedOperationException If this sink can't fork.
+     */
+    void join(OutputSink subjectSink);
+}
@@ -0,0 +1,275 @@
+package XmlWriting;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * <h1>REDCap flat import CSV file writer.</h1>
+ * <p>
+ * Writes the converted data as a CSV file that can be imported into a
+ * longitudinal REDCap project, with a column for every variable given up
+ * front. The first variable is the record ID field of the project, and it is
+ * followed by the redcap_event_name, redcap_repeat_instrument and
+ * redcap_repeat_instance columns.
+ * <p>
+ * Which forms and events repeat is given by the conversion when the document
+ * is created, so that every patient's rows agree with the repeating
+ * instruments and events of the REDCap project. I.e: the values of a
+ * repeating form go into a row per FormData, with the form as the repeat
+ * instrument, the values of a repeating event go into a row per
+ * StudyEventData without a repeat instrument, and all the other values of an
+ * event go into a single row. The values of a SubjectData are kept until the
+ * next one is created and then written out as rows, in the order their first
+ * value was created.
+ * <p>
+ * A forked sink shares the columns and prints the rows of its single
+ * SubjectData into a StringBuilder, which is appended to the file when it is
+ * joined.
+ *
+ * @author James Conway
+ * @since 2018-07-19
+ */
+public class RedcapCsvSink implements OutputSink {
+
+    private File csvFile;
+    /**
+     * The header row of the file.
+     */
+    private String[] header;
+    /**
+     * The column of every variable after the record ID field, shared with the
+     * forked sinks.
+     * <p>
+     * I.e: {variable : column}
+     */
+    private HashMap<String, Integer> variableToColumn;
+    /**
+     * The events and forms that repeat, shared with the forked sinks.
+     */
+    private Set<String> repeatingEvents, repeatingForms;
+
+    /**
+     * The file writer, or the StringBuilder of a forked sink.
+     */
+    private Appendable out;
+    private CSVPrinter printer;
+    /**
+     * Set once writing failed, after which nothing else is written.
+     */
+    private boolean failed;
+
+    // The SubjectData being created
+    private String patientID;
+    private String event, form;
+    private int eventRepeatKey, formRepeatKey;
+    private ArrayList<Item> items;
+
+    /**
+     * A value of the current SubjectData and where it was created.
+     */
+    private static final class Item {
+
+        final String event, form;
+        final int eventRepeatKey, formRepeatKey;
+        final int column;
+        final String value;
+
+        private Item(String event, int eventRepeatKey, String form, int formRepeatKey, int column, String value) {
+            this.event = event;
+            this.eventRepeatKey = eventRepeatKey;
+            this.form = form;
+            this.formRepeatKey = formRepeatKey;
+            this.column = column;
+            this.value = value;
+        }
+    }
+
+    /**
+     * @param csvFile The file to be written to.
+     * @param variables The variables to write a column for, the first one
+     * being the record ID field. Values of other variables are left out.
+     * @throws IllegalArgumentException If there are no variables.
+     */
+    public RedcapCsvSink(File csvFile, List<String> variables) {
+        if (variables.isEmpty()) {
+            throw new IllegalArgumentException("The record ID field is missing from the variables.");
+        }
+        this.csvFile = csvFile;
+        header = new String[variables.size() + 3];
+        variableToColumn = new HashMap<>();
+        header[0] = variables.get(0);
+        header[1] = "redcap_event_name";
+        header[2] = "redcap_repeat_instrument";
+        header[3] = "redcap_repeat_instance";
+        for (int i = 1; i < variables.size(); i++) {
+            header[i + 3] = variables.get(i);
+            variableToColumn.putIfAbsent(variables.get(i), i + 3);
+        }
+        items = new ArrayList<>();
+    }
+
+    /**
+     * Create a forked sink.
+     *
+     * @param parent The sink of the CSV file.
+     */
+    private RedcapCsvSink(RedcapCsvSink parent) {
+        header = parent.header;
+        variableToColumn = parent.variableToColumn;
+        repeatingEvents = parent.repeatingEvents;
+        repeatingForms = parent.repeatingForms;
+        items = new ArrayList<>();
+        out = new StringBuilder();
+        try {
+            printer = new CSVPrinter(out, CSVFormat.DEFAULT);
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public void createDocument(Set<String> repeatingEvents, Set<String> repeatingForms) {
+        this.repeatingEvents = repeatingEvents;
+        this.repeatingForms = repeatingForms;
+        try {
+            Writer fileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), StandardCharsets.UTF_8));
+            out = fileWriter;
+            printer = new CSVPrinter(fileWriter, CSVFormat.DEFAULT);
+            printer.printRecord((Object[]) header);
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public void createSubjectData(String patientID) {
+        printSubject();
+        this.patientID = patientID;
+    }
+
+    @Override
+    public void createStudyEventData(String event, int repeatKey) {
+        this.event = event;
+        eventRepeatKey = repeatKey;
+    }
+
+    @Override
+    public void createFormData(String form, int repeatKey) {
+        this.form = form;
+        formRepeatKey = repeatKey;
+    }
+
+    @Override
+    public void createItemData(String variable, String form, boolean createGroupData, String value) {
+        Integer column = variableToColumn.get(variable);
+        if (column != null) {
+            items.add(new Item(event, eventRepeatKey, this.form, formRepeatKey, column, value));
+        }
+    }
+
+    @Override
+    public void saveDocument() {
+        try {
+            printSubject();
+            if (printer != null) {
+                printer.close();
+            }
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    @Override
+    public boolean canFork() {
+        return true;
+    }
+
+    @Override
+    public OutputSink fork() {
+        return new RedcapCsvSink(this);
+    }
+
+    @Override
+    public void join(OutputSink subjectSink) {
+        RedcapCsvSink subject = (RedcapCsvSink) subjectSink;
+        subject.printSubject();
+        if (failed || subject.failed) {
+            return;
+        }
+        try {
+            out.append((StringBuilder) subject.out);
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+    }
+
+    /**
+     * Print the rows of the current SubjectData, in the order their first
+     * value was created.
+     */
+    private void printSubject() {
+        if (patientID == null || failed) {
+            items.clear();
+            return;
+        }
+
+        // Put every value into the row of its event, and repeat instrument and instance
+        LinkedHashMap<String, String[]> rows = new LinkedHashMap<>();
+        for (Item item : items) {
+            String instrument = "";
+            String instance = "";
+            if (repeatingForms.contains(item.form)) {
+                instrument = item.form;
+                instance = Integer.toString(item.formRepeatKey);
+            } else if (repeatingEvents.contains(item.event)) {
+                instance = Integer.toString(item.eventRepeatKey);
+            }
+            String rowKey = item.event + "\n" + item.eventRepeatKey + "\n" + instrument + "\n" + instance;
+            String[] row = rows.get(rowKey);
+            if (row == null) {
+                row = new String[header.length];
+                row[0] = patientID;
+                row[1] = item.event;
+                row[2] = instrument;
+                row[3] = instance;
+                rows.put(rowKey, row);
+            }
+            row[item.column] = item.value;
+        }
+
+        try {
+            for (String[] row : rows.values()) {
+                printer.printRecord((Object[]) row);
+            }
+        } catch (IOException ex) {
+            reportException(ex);
+        }
+        items.clear();
+        patientID = null;
+    }
+
+    private void reportException(IOException ex) {
+        if (!failed) {
+            failed = true;
+            Alert alert = new Alert(Alert.AlertType.ERROR, "IOException: " + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+        }
+        Logger.getLogger(RedcapCsvSink.class.getName()).log(Level.SEVERE, null, ex);
+    }
+}
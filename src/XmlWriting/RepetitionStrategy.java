@@ -0,0 +1,160 @@
+package XmlWriting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * <h1>How the values of a form repeat in the Excel file.</h1>
+ * <p>
+ * The {@link XmlConverter XmlConverter} runs the same conversion for every
+ * kind of Excel file, the strategy only decides how the values of every
+ * chosen form are read from a patient's data and what the repeats of a form
+ * turn into in the ODM XML file.
+ * <p>
+ * I.e: values[repeat][variable], one FormData element per repeat, or one
+ * StudyEventData element per repeat when the rows repeat events.
+ *
+ * @author James Conway
+ * @since 2018-07-19
+ */
+interface RepetitionStrategy {
+
+    /**
+     * Read the values of a chosen form for a single patient.
+     *
+     * @param plan The plan of the conversion.
+     * @param form A chosen form.
+     * @param sheetData The patient's data from
+     * {@link ConversionPlan#arrangeSheets arrangeSheets}.
+     * @return The value of every chosen variable of the form in every repeat,
+     * I.e: values[repeat][variable], null for empty values.
+     */
+    String[][] readForm(ConversionPlan plan, String form, LinkedHashMap[] sheetData);
+
+    /**
+     * @return Whether the repeats of a form go into repeating StudyEventData
+     * elements, instead of repeating FormData elements of a single
+     * StudyEventData element.
+     */
+    boolean repeatsEvents();
+
+    /**
+     * @param plan The plan of the conversion.
+     * @param form A chosen form.
+     * @return Whether the form can have more than one FormData element in a
+     * StudyEventData element.
+     */
+    boolean repeatsForm(ConversionPlan plan, String form);
+
+    /**
+     * @param value A value read by {@link #readForm readForm}.
+     * @return Whether an ItemData element is created for the value.
+     */
+    boolean writesValue(String value);
+
+    /**
+     * The Excel contains repeating values across columns, every occurrence of
+     * a form has its own fields, and even empty values get an ItemData
+     * element.
+     */
+    static final class Columns implements RepetitionStrategy {
+
+        @Override
+        public String[][] readForm(ConversionPlan plan, String form, LinkedHashMap[] sheetData) {
+            ConversionPlan.Slot[][] slots = plan.repeatingColumnsSlots(form, sheetData);
+            String[][] values = new String[slots.length][];
+            for (int i = 0; i < slots.length; i++) {
+                values[i] = new String[slots[i].length];
+                for (int j = 0; j < slots[i].length; j++) {
+                    ConversionPlan.Slot slot = slots[i][j];
+                    values[i][j] = slot != null ? (String) sheetData[slot.sheet].get(slot.field) : null;
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public boolean repeatsEvents() {
+            return false;
+        }
+
+        @Override
+        public boolean repeatsForm(ConversionPlan plan, String form) {
+            return plan.getOccurence(form) > 1;
+        }
+
+        @Override
+        public boolean writesValue(String value) {
+            return true;
+        }
+    }
+
+    /**
+     * The Excel contains repeating values across rows, every row of a
+     * patient makes a repeating FormData element.
+     */
+    static class FormRows implements RepetitionStrategy {
+
+        @Override
+        public String[][] readForm(ConversionPlan plan, String form, LinkedHashMap[] sheetData) {
+            ConversionPlan.Slot[] slots = plan.repeatingRowsSlots(form, sheetData);
+            // Read the values of every variable once, the form repeats as many
+            // times as the variable with the most values
+            ArrayList[] variableValues = new ArrayList[slots.length];
+            int repeats = 0;
+            for (int j = 0; j < slots.length; j++) {
+                if (slots[j] != null) {
+                    variableValues[j] = (ArrayList) sheetData[slots[j].sheet].get(slots[j].field);
+                }
+                if (variableValues[j] != null) {
+                    repeats = Math.max(repeats, variableValues[j].size());
+                }
+            }
+
+            String[][] values = new String[repeats][slots.length];
+            for (int j = 0; j < slots.length; j++) {
+                for (int i = 0; variableValues[j] != null && i < variableValues[j].size(); i++) {
+                    values[i][j] = (String) variableValues[j].get(i);
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public boolean repeatsEvents() {
+            return false;
+        }
+
+        @Override
+        public boolean repeatsForm(ConversionPlan plan, String form) {
+            return true;
+        }
+
+        @Override
+        public boolean writesValue(String value) {
+            return value != null;
+        }
+    }
+
+    /**
+     * The Excel contains repeating values across rows, every row of a
+     * patient makes a repeating StudyEventData element.
+     */
+    static final class EventRows extends FormRows {
+
+        @Override
+        public boolean repeatsEvents() {
+            return true;
+        }
+
+        @Override
+        public boolean repeatsForm(ConversionPlan plan, String form) {
+            return false;
+        }
+
+        @Override
+        public boolean writesValue(String value) {
+            return value != null && !value.equals("&#10;");
+        }
+    }
+}
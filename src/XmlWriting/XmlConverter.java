@@ -5,24 +5,37 @@ import CsvParsing.InstrumentDesigParser;
 import Debugging.DebugReporter;
 import GUI.Utils.MenuTracker;
 import XlsxParsing.ExcelParser;
+import GUI.MainSceneController;
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.List;
-import org.w3c.dom.Element;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 /**
  * <h1>User Choice and Parsed data converter for XML writing.</h1>
  * <p>
  * Takes the {@link GUI.Utils.MenuTracker MenuTracker} and Parser data and then
- * converts it into a form that the XmlWriter can write to the final XML file.
- * It has two main methods: 'convertRepeatingColumns' with a helper function
- * 'fieldFinderRepeatingColumns', and 'convertRepeatingRows' with a helper
- * function 'fieldFinderRepeatingRows'. The conversion process had to be divided
- * between these two main methods because of the algorithmic difference of
- * performing a conversion on data that has Repeating Columns, or Repeating
- * Rows.
+ * converts it into a form that an {@link OutputSink OutputSink} can write to the final XML file.
+ * It has two main methods: 'convertRepeatingColumns' and
+ * 'convertRepeatingRows', which both run the same conversion and read the
+ * Excel value of every variable through the slots resolved by a
+ * {@link ConversionPlan ConversionPlan}. The algorithmic difference between
+ * data that has Repeating Columns, Repeating Form Rows or Repeating Event
+ * Rows is left to a {@link RepetitionStrategy RepetitionStrategy}.
+ * <p>
+ * The SubjectData of every patient only depends on that patient's data, so
+ * when the OutputSink can {@link OutputSink#fork fork}, the patients are
+ * converted concurrently into separate sinks which are then joined back in
+ * the order of the patientIDs, giving the same file as a sequential run.
  *
  * @author James Conway
  * @since 2018-07-19
@@ -34,10 +47,32 @@ public class XmlConverter {
     private InstrumentDesigParser instrumentParser;
     private DataDictionaryParser dictionaryParser;
     private ExcelParser excelParser;
-    private XmlWriter xmlWriter;
+    private OutputSink sink;
     private File xmlFile;
     private boolean defaultValues;
 
+    /**
+     * The number of threads patients are converted with, 1 converts them
+     * sequentially.
+     */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Tests the patientIDs to convert, null to convert all of them.
+     */
+    private Predicate<String> patientFilter;
+
+    // The data gathered at the start of a conversion
+    private LinkedHashMap<String, LinkedHashMap> patientToSheets;
+    private String[] chosenEvents, chosenForms;
+    /**
+     * Whether each chosen form belongs to each chosen event.
+     * <p>
+     * I.e: chosenEventForms[chosen event][chosen form]
+     */
+    private boolean[][] chosenEventForms;
+    private ConversionPlan plan;
+
     /**
      * @param menuTracker Contains user's REDCap choices
      * @param instrumentParser Has EventToForm mappings
@@ -49,383 +84,356 @@ public class XmlConverter {
     public XmlConverter(MenuTracker menuTracker, InstrumentDesigParser instrumentParser,
             DataDictionaryParser dictionaryParser, ExcelParser excelParser,
             File xmlFile, boolean defaultValues) {
+        this(menuTracker, instrumentParser, dictionaryParser, excelParser, xmlFile, defaultValues,
+                new OdmByteWriter(xmlFile, true));
+    }
+
+    /**
+     * @param menuTracker Contains user's REDCap choices
+     * @param instrumentParser Has EventToForm mappings
+     * @param dictionaryParser Has FormToVariable and VariableToDefault mappings
+     * @param excelParser Has patient data
+     * @param xmlFile Name of the XML file to be created
+     * @param defaultValues Determines whether there are default values
+     * @param sink Writes the converted data, I.e: an {@link XmlWriter XmlWriter}
+     * to build the whole document in memory before saving it, or a
+     * {@link CompositeSink CompositeSink} to write several formats at once.
+     * The GUI always writes with an {@link OdmByteWriter OdmByteWriter}.
+     */
+    public XmlConverter(MenuTracker menuTracker, InstrumentDesigParser instrumentParser,
+            DataDictionaryParser dictionaryParser, ExcelParser excelParser,
+            File xmlFile, boolean defaultValues, OutputSink sink) {
         this.menuTracker = menuTracker;
         this.instrumentParser = instrumentParser;
         this.dictionaryParser = dictionaryParser;
         this.excelParser = excelParser;
         this.xmlFile = xmlFile;
         this.defaultValues = defaultValues;
-        xmlWriter = new XmlWriter(xmlFile);
+        this.sink = sink;
     }
 
     /**
      * Builds the XML file for when the Excel contains repeating values across
      * columns.
      * <p>
-     * First iterate through the patientIDs and create a SubjectData element
-     * then for each patientID iterate through the user chosen REDCap events and
-     * create a StudyEventData element, for each event iterate through the
-     * corresponding chosen RedCAP forms and create FormData element. Finally
-     * for each form, create an ItemData element and then if necessary add their
-     * default values. 
+     * Every occurrence of a form is read from its own fields and creates its
+     * own FormData element, see {@link #convert convert}.
      */
     public void convertRepeatingColumns() {
-        boolean createGroupData;
-        ArrayList<String> visitedFields;
+        // Gather necessary data
+        gatherData(menuTracker.getFormToOccurence());
+        convert(new RepetitionStrategy.Columns());
+    }
 
+    /**
+     * Builds the XML file for when the Excel contains repeating values across
+     * rows.
+     * <p>
+     * Every row of a patient creates either a repeating FormData element, or
+     * a repeating StudyEventData element, see {@link #convert convert}.
+     *
+     * @param formsInsteadOfEvents Whether the rows repeat FormData elements
+     * instead of StudyEventData elements.
+     */
+    public void convertRepeatingRows(boolean formsInsteadOfEvents) {
         // Gather necessary data
-        LinkedHashMap<String, LinkedHashMap> patientToSheets = excelParser.getPatientToSheets();
-        HashMap<String, ArrayList> eventToForm = instrumentParser.getEventToForm();
-        LinkedHashMap<String, LinkedHashMap> sheetToFieldToVariable = menuTracker.getSheetToFieldToVariable();
-        HashMap<String, Integer> formToOccurence = menuTracker.getFormToOccurence();
-        HashMap<String, ArrayList> formToVariables = menuTracker.getFormToVariables();
-        HashMap<String, ArrayList> formToAllVariables = dictionaryParser.getFormToVariables();
-        HashMap<String, String> variableToDefault = dictionaryParser.getVariableToDefault();
+        gatherData(null);
+        convert(formsInsteadOfEvents ? new RepetitionStrategy.FormRows() : new RepetitionStrategy.EventRows());
+    }
 
+    /**
+     * Convert every patient with the given repetition strategy into the XML
+     * file.
+     *
+     * @param strategy How the values of the forms repeat in the Excel file.
+     */
+    private void convert(RepetitionStrategy strategy) {
         debugReporter = new DebugReporter("XmlConverter.txt");
 
-        xmlWriter.createDocument();
+        // Which events and forms repeat follows from the strategy, whatever
+        // the data of the patients
+        HashSet<String> repeatingEvents = new HashSet<>();
+        HashSet<String> repeatingForms = new HashSet<>();
+        for (String event : chosenEvents) {
+            if (strategy.repeatsEvents()) {
+                repeatingEvents.add(event);
+            }
+        }
+        for (String form : chosenForms) {
+            if (strategy.repeatsForm(plan, form)) {
+                repeatingForms.add(form);
+            }
+        }
 
-        // Iterate through the parsed patientIDs
-        for (String patientID : patientToSheets.keySet()) {
+        try {
+            sink.createDocument(repeatingEvents, repeatingForms);
+            // A failed conversion is never saved, so that a document missing
+            // patients can't pass for a complete one
+            convertPatients((patientID, subjectSink) -> convertPatient(patientID, subjectSink, strategy));
+            sink.saveDocument();
+            debugReporter.writeLn("Done!");
+        } finally {
+            debugReporter.close();
+        }
+    }
+
+    /**
+     * Convert the data of a single patient.
+     * <p>
+     * First create a SubjectData element for the patientID, then iterate
+     * through the user chosen REDCap events and their chosen RedCAP forms. The
+     * values of every form are read once, and each of their repeats creates a
+     * FormData element, either all in the same StudyEventData element or
+     * each in its own repeating StudyEventData element. A repeating
+     * StudyEventData element only contains the forms that have a value for
+     * it, in the order of the chosen forms.
+     *
+     * @param patientID The patientID to convert the data of.
+     * @param subjectSink The sink to create the patient's SubjectData with.
+     * @param strategy How the values of the forms repeat in the Excel file.
+     */
+    private void convertPatient(String patientID, OutputSink subjectSink, RepetitionStrategy strategy) {
+        if (MainSceneController.DEBUG) {
             debugReporter.writeLn("-----------------------------------------------------------");
             debugReporter.writeLn("Working on patientID: " + patientID);
+        }
 
-            Element subjectData = xmlWriter.createSubjectData(patientID);
+        subjectSink.createSubjectData(patientID);
+        LinkedHashMap[] sheetData = plan.arrangeSheets(patientToSheets.get(patientID));
 
-            // Iterate through the chosen events
-            for (String event : menuTracker.getChosenEvents()) {
+        // Iterate through the chosen events
+        for (int e = 0; e < chosenEvents.length; e++) {
+            String event = chosenEvents[e];
+            if (MainSceneController.DEBUG) {
                 debugReporter.writeLn("\nWorking on chosen event: " + event);
+            }
+
+            // Read the values of the chosen forms that correspond to this event,
+            // I.e: formValues[form][repeat][variable]
+            String[][][] formValues = new String[chosenForms.length][][];
+            int repeatingEvents = 0;
+            for (int f = 0; f < chosenForms.length; f++) {
+                if (chosenEventForms[e][f]) {
+                    formValues[f] = strategy.readForm(plan, chosenForms[f], sheetData);
+                    repeatingEvents = Math.max(repeatingEvents, formValues[f].length);
+                }
+            }
 
-                Element studyEventData = xmlWriter.createStudyEventData(event, 1, subjectData);
-
-                // Iterate through the chosen forms
-                for (String form : menuTracker.getChosenForms()) {
-
-                    // If this form corresponds to the current event
-                    if (eventToForm.get(event).contains(form)) {
-                        debugReporter.writeLn("\nWorking on chosen form: " + form);
-                        visitedFields = new ArrayList<>();
-
-                        // Iterate through the number of occurences this form has
-                        for (int i = 0; i < formToOccurence.get(form); i++) {
-
-                            // If this is the first ItemData to be put in this FormData then
-                            // we use this variable to check if a new ItemGroupData element 
-                            // needs to be made to put the new ItemData elements in
-                            createGroupData = true;
-                            Element formData = xmlWriter.createFormData(form, i + 1, studyEventData);
-                            ArrayList<String> chosenVariables = formToVariables.get(form);
-
-                            // Iterate through the chosen variables
-                            for (String variable : chosenVariables) {
-                                debugReporter.writeLn("\nWorking on chosen variable: " + variable);
-
-                                // Find the corresponding variable and field              
-                                HashMap<String, String> results = fieldFinderRepeatingColumns(variable, sheetToFieldToVariable,
-                                        visitedFields, patientToSheets, patientID);
-                                visitedFields.add(results.get("field"));
-
-                                // Add them to the XML
-                                xmlWriter.createItemData(variable, form, createGroupData, results.get("value"), formData);
-                                createGroupData = false;
-                            }
-
-                            // If default values have to be added too
-                            if (defaultValues) {
-                                List<String> unchosenVariables = formToAllVariables.get(form);
-                                unchosenVariables.removeAll(chosenVariables);
-                                // Iterate through the unchosen variables
-                                for (String variable : unchosenVariables) {
-                                    if (variableToDefault.keySet().contains(variable)) {
-                                        debugReporter.writeLn("\nWorking on unchosen variable: " + variable);
-
-                                        // Find the corresponding variable and field   
-                                        xmlWriter.createItemData(variable, form, createGroupData, variableToDefault.get(variable), formData);
-                                        createGroupData = false;
-                                    }
-                                }
-                            }
+            if (strategy.repeatsEvents()) {
+                // Create a StudyEventData element for every repeat and fill it with the
+                // FormData elements of the forms that have a value for it
+                for (int i = 0; i < repeatingEvents; i++) {
+                    if (MainSceneController.DEBUG) {
+                        debugReporter.writeLn("\nCreating new study event: " + (i + 1));
+                    }
+                    subjectSink.createStudyEventData(event, i + 1);
+                    for (int f = 0; f < chosenForms.length; f++) {
+                        if (formValues[f] != null && formValues[f].length > i) {
+                            createFormData(chosenForms[f], 1, formValues[f][i], subjectSink, strategy);
                         }
                     }
                 }
+            } else {
+                // Create a FormData element for every repeat of every form
+                subjectSink.createStudyEventData(event, 1);
+                for (int f = 0; f < chosenForms.length; f++) {
+                    for (int i = 0; formValues[f] != null && i < formValues[f].length; i++) {
+                        createFormData(chosenForms[f], i + 1, formValues[f][i], subjectSink, strategy);
+                    }
+                }
             }
         }
-
-        xmlWriter.saveDocument();
-
-        debugReporter.writeLn("Done!");
-        debugReporter.close();
     }
 
     /**
-     * Builds the XML file for when the Excel contains repeating values across
-     * rows.
-     * <p>
-     * First iterate through the patientIDs and create a SubjectData element
-     * then for each patientID iterate through the user chosen REDCap events and
-     * create a StudyEventData element, for each event iterate through the
-     * corresponding chosen RedCAP forms and create FormData element. Finally
-     * for each form, create the necessary number of repeating FormData elements
-     * and fill them with their respective ItemData elements.
+     * Create a FormData element and fill it with the ItemData elements of its
+     * values, and then if necessary add their default values.
+     *
+     * @param form The form of the FormData element.
+     * @param repeatKey The repeat key of the FormData element.
+     * @param values The value of every chosen variable of the form, in the
+     * order of the plan.
+     * @param subjectSink The sink of the current patient.
+     * @param strategy Decides which values get an ItemData element.
      */
-    public void convertRepeatingRows(boolean formsInsteadOfEvents) {
-        boolean createGroupData;
-
-        // Gather necessary data
-        LinkedHashMap<String, LinkedHashMap> patientToSheets = excelParser.getPatientToSheets();
-        HashMap<String, ArrayList> eventToForm = instrumentParser.getEventToForm();
-        LinkedHashMap<String, LinkedHashMap> sheetToFieldToVariable = menuTracker.getSheetToFieldToVariable();
-        HashMap<String, ArrayList> formToVariables = menuTracker.getFormToVariables();
-        HashMap<String, ArrayList> formToAllVariables = dictionaryParser.getFormToVariables();
-        HashMap<String, String> variableToDefault = dictionaryParser.getVariableToDefault();
-
-        debugReporter = new DebugReporter("XmlConverter.txt");
-
-        xmlWriter.createDocument();
-
-        // Iterate through the parsed patientIDs
-        for (String patientID : patientToSheets.keySet()) {
-            debugReporter.writeLn("-----------------------------------------------------------");
-            debugReporter.writeLn("Working on patientID: " + patientID);
-
-            Element subjectData = xmlWriter.createSubjectData(patientID);
-            
-            // If this is for repeating form rows
-            if(formsInsteadOfEvents){
-	            // Iterate through the chosen events
-	            for (String event : menuTracker.getChosenEvents()) {
-	                debugReporter.writeLn("\nWorking on chosen event: " + event);
-	                Element studyEventData = xmlWriter.createStudyEventData(event, 1, subjectData);
-	
-	                // Iterate through the chosen forms
-	                for (String form : menuTracker.getChosenForms()) {
-	
-	                    // If this form corresponds to the current event
-	                    if (eventToForm.get(event).contains(form)) {
-	                        debugReporter.writeLn("\nWorking on chosen form: " + form);
-	                        ArrayList<String> chosenVariables = formToVariables.get(form);
-	                        int repeatingForms = 0;
-	
-	                        // Iterate through the chosen variables to count how many FormData elements are needed
-	                        // for the repeating values
-	                        debugReporter.writeLn("\nCounting FormData elements to be made.");
-	                        for (String variable : chosenVariables) {
-	                            debugReporter.writeLn("\nWorking on chosen variable: " + variable);
-	
-	                            ArrayList<String> values = fieldFinderRepeatingRows(variable, sheetToFieldToVariable,
-	                                    patientToSheets, patientID);
-	                            if (values.size() > repeatingForms) {
-	                                repeatingForms = values.size();
-	                            }
-	                        }
-	
-	                        // Create a FormData element for every repeating value and fill it with the relevant data
-	                        debugReporter.writeLn("\nCreating FormData elements.");
-	                        for (int i = 0; i < repeatingForms; i++) {
-	                            // If this is the first ItemData to be put in this FormData then
-	                            // we use this variable to check if a new ItemGroupData element 
-	                            // needs to be made to put the new ItemData elements in
-	                            createGroupData = true;
-	                            Element formData = xmlWriter.createFormData(form, i + 1, studyEventData);
-	
-	                            for (String variable : chosenVariables) {
-	                                debugReporter.writeLn("\nWorking on chosen variable: " + variable);
-	                                // Find the corresponding variable and field     
-	                                ArrayList<String> values = fieldFinderRepeatingRows(variable, sheetToFieldToVariable,
-	                                        patientToSheets, patientID);
-	                                // If the values List isn't empty, and if it isn't smaller than the current iteration, and
-	                                // the value itself isn't null, add it to the XML
-	                                if (!values.isEmpty() && values.size() > i && values.get(i) != null) {
-	                                    xmlWriter.createItemData(variable, form, createGroupData, values.get(i), formData);
-	                                    createGroupData = false;
-	                                }
-	                            }
-	
-	                            // If default values have to be added too
-	                            if (defaultValues) {
-	                                List<String> unchosenVariables = formToAllVariables.get(form);
-	                                unchosenVariables.removeAll(chosenVariables);
-	                                // Iterate through the unchosen variables
-	                                for (String variable : unchosenVariables) {
-	                                    if (variableToDefault.keySet().contains(variable)) {
-	                                        debugReporter.writeLn("\nWorking on unchosen variable: " + variable);
-	
-	                                        // Add the default value variable to the XML
-	                                        xmlWriter.createItemData(variable, form, createGroupData, variableToDefault.get(variable), formData);
-	                                        createGroupData = false;
-	                                    }
-	                                }
-	                            }
-	                        }
-	                    }
-	                }
-	            }
+    private void createFormData(String form, int repeatKey, String[] values, OutputSink subjectSink,
+            RepetitionStrategy strategy) {
+        if (MainSceneController.DEBUG) {
+            debugReporter.writeLn("\nCreating FormData element for form: " + form + ", repeat: " + repeatKey);
+        }
+        String[] planVariables = plan.getVariables(form);
+
+        // If this is the first ItemData to be put in this FormData then
+        // we use this variable to check if a new ItemGroupData element
+        // needs to be made to put the new ItemData elements in
+        boolean createGroupData = true;
+        subjectSink.createFormData(form, repeatKey);
+
+        // Iterate through the chosen variables
+        for (int j = 0; j < planVariables.length; j++) {
+            if (MainSceneController.DEBUG) {
+                debugReporter.writeLn("Working on chosen variable: " + planVariables[j] + ", value: " + values[j]);
             }
-            
-            // Otherwise, this is for repeating event rows
-            else{
-            	System.out.println("patientToSheets: " + patientToSheets.toString());
-            	// Iterate through the chosen events
-	            for (String event : menuTracker.getChosenEvents()) {
-	                debugReporter.writeLn("\nWorking on chosen event: " + event);
-	                List<Element> studyEvents = new ArrayList<Element>();
-	
-	                // Iterate through the chosen forms
-	                for (String form : menuTracker.getChosenForms()) {
-	                	
-	                    // If this form corresponds to the current event
-	                    if (eventToForm.get(event).contains(form)) {
-	                        debugReporter.writeLn("\nWorking on chosen form: " + form);
-	                        ArrayList<String> chosenVariables = formToVariables.get(form);
-	                        int repeatingForms = 0;
-	
-	                        // Iterate through the chosen variables to count how many FormData elements are needed
-	                        // for the repeating values
-	                        debugReporter.writeLn("\nCounting FormData elements to be made.");
-	                        for (String variable : chosenVariables) {
-	                            debugReporter.writeLn("\nWorking on chosen variable: " + variable);
-	
-	                            ArrayList<String> values = fieldFinderRepeatingRows(variable, sheetToFieldToVariable,
-	                                    patientToSheets, patientID);
-	                            if (values.size() > repeatingForms) {
-	                                repeatingForms = values.size();
-	                            }
-	                        }
-	                        
-	                        // Create a FormData element for every repeating value and fill it with the relevant data
-	                        debugReporter.writeLn("\nCreating FormData elements.");
-	                        for (int i = 0; i < repeatingForms; i++) {
-	                            // If this is the first ItemData to be put in this FormData then
-	                            // we use this variable to check if a new ItemGroupData element 
-	                            // needs to be made to put the new ItemData elements in
-	                            createGroupData = true;
-	                            Element formData;
-	                            if(studyEvents.isEmpty() || studyEvents.size() <= i){
-	                            	debugReporter.writeLn("\nCreating new study event: " + (i+1));
-	                            	Element studyEventData = xmlWriter.createStudyEventData(event, i+1, subjectData);
-	                            	studyEvents.add(studyEventData);
-	                            	formData = xmlWriter.createFormData(form, 1, studyEventData);
-	                            }
-	                            else{
-	                            	formData = xmlWriter.createFormData(form, 1, studyEvents.get(i));
-	                            }
-	
-	                            for (String variable : chosenVariables) {
-	                                debugReporter.writeLn("\nWorking on chosen variable: " + variable);
-	                                // Find the corresponding variable and field   
-	                                ArrayList<String> values = fieldFinderRepeatingRows(variable, sheetToFieldToVariable,
-	                                        patientToSheets, patientID);
-	                                System.out.println("variable: " + variable);
-	                                System.out.println("values: " + values);
-	                                // If the values List isn't empty, and if it isn't smaller than the current iteration, and
-	                                // the value itself isn't null, add it to the XML
-	                                if (!values.isEmpty() && values.size() > i && values.get(i) != null && !values.get(i).equals("&#10;")) {
-	                                    xmlWriter.createItemData(variable, form, createGroupData, values.get(i), formData);
-	                                    createGroupData = false;
-	                                }
-	                            }
-	
-	                            // If default values have to be added too
-	                            if (defaultValues) {
-	                                List<String> unchosenVariables = formToAllVariables.get(form);
-	                                unchosenVariables.removeAll(chosenVariables);
-	                                // Iterate through the unchosen variables
-	                                for (String variable : unchosenVariables) {
-	                                    if (variableToDefault.keySet().contains(variable)) {
-	                                        debugReporter.writeLn("\nWorking on unchosen variable: " + variable);
-	
-	                                        // Add the default value variable to the XML
-	                                        xmlWriter.createItemData(variable, form, createGroupData, variableToDefault.get(variable), formData);
-	                                        createGroupData = false;
-	                                    }
-	                                }
-	                            }
-	                        }
-	                    }
-	                }
-	            }
+            if (strategy.writesValue(values[j])) {
+                subjectSink.createItemData(planVariables[j], form, createGroupData, values[j]);
+                createGroupData = false;
             }
         }
 
-        xmlWriter.saveDocument();
+        // If default values have to be added too
+        if (defaultValues) {
+            createDefaultItemData(form, createGroupData, subjectSink);
+        }
+    }
+
+    /**
+     * Add the ItemData elements of the unchosen variables of a form that have
+     * a default value.
+     *
+     * @param form The form of the current FormData element.
+     * @param createGroupData Whether the FormData has no ItemGroupData yet.
+     * @param subjectSink The sink of the current patient.
+     */
+    private void createDefaultItemData(String form, boolean createGroupData, OutputSink subjectSink) {
+        // Iterate through the unchosen variables with a default value
+        for (ConversionPlan.DefaultItem item : plan.getDefaults(form)) {
+            if (MainSceneController.DEBUG) {
+                debugReporter.writeLn("\nWorking on unchosen variable: " + item.variable);
+            }
 
-        debugReporter.writeLn("Done!");
-        debugReporter.close();
+            // Add the default value variable to the XML
+            subjectSink.createItemData(item.variable, form, createGroupData, item.value);
+            createGroupData = false;
+        }
     }
 
     /**
-     * Finds the Excel value of a given variable considering repeating columns.
+     * Gather the parsed data and user choices needed by a conversion, and
+     * compile them into a {@link ConversionPlan ConversionPlan}.
      *
-     * @param variable The variable to find
-     * @param sheetToFieldToVariable Contains the FieldToVariable mapping.
-     * @param visitedFields List of fields already visited.
-     * @param patientToSheets Contains Excel file data.
-     * @param patientID The current patient ID.
-     * @return A HashMap containing the visited field and the value found.
+     * @param formToOccurence How many times each form repeats across columns,
+     * null when converting repeating rows.
      */
-    public HashMap<String, String> fieldFinderRepeatingColumns(String variable, LinkedHashMap<String, LinkedHashMap> sheetToFieldToVariable,
-            ArrayList<String> visitedFields, LinkedHashMap<String, LinkedHashMap> patientToSheets, String patientID) {
-        HashMap<String, String> results = new HashMap<>();
-
-        // Iterate through the sheets
-        for (String sheet : sheetToFieldToVariable.keySet()) {
-            LinkedHashMap<String, String> fieldToVariable = sheetToFieldToVariable.get(sheet);
-            // Iterate through the fields of the sheet
-            for (String field : fieldToVariable.keySet()) {
-                // If the field corresponds to the given variable and hasn't been previously visited
-                if (fieldToVariable.get(field).equals(variable) && !visitedFields.contains(field)) {
-                    LinkedHashMap<String, LinkedHashMap> excelSheetToFields = patientToSheets.get(patientID);
-                    LinkedHashMap<String, String> excelFieldToVariable = excelSheetToFields.get(sheet);
-                    // If this field's value is not null, return it
-                    if (excelFieldToVariable != null) {
-                        debugReporter.writeLn("Corresponding field found on sheet: " + sheet + ", field: " + field + ", values: " + excelFieldToVariable.get(field));
-                        results.put("value", excelFieldToVariable.get(field));
-                        results.put("field", field);
-                        return results;
-                    }
-                }
+    private void gatherData(HashMap<String, Integer> formToOccurence) {
+        patientToSheets = excelParser.getPatientToSheets();
+        resolveChosenEvents();
+        plan = new ConversionPlan(menuTracker.getSheetToFieldToVariable(), menuTracker.getFormToVariables(), formToOccurence);
+
+        // Only the unchosen variables of a form can get a default value
+        if (defaultValues) {
+            plan.compileDefaults(dictionaryParser.getFormToVariables(), dictionaryParser.getVariableToDefault());
+        }
+    }
+
+    /**
+     * Resolve the chosen events and forms to the ids of the
+     * {@link CsvParsing.InstrumentDesigParser InstrumentDesigParser} once,
+     * and look up which chosen forms belong to which chosen events, so that
+     * the per-patient loops only read an array.
+     */
+    private void resolveChosenEvents() {
+        chosenEvents = menuTracker.getChosenEvents().toArray(new String[0]);
+        chosenForms = menuTracker.getChosenForms().toArray(new String[0]);
+        boolean[][] eventFormMatrix = instrumentParser.getEventFormMatrix();
+        int[] formIds = new int[chosenForms.length];
+        for (int f = 0; f < chosenForms.length; f++) {
+            formIds[f] = instrumentParser.getFormId(chosenForms[f]);
+        }
+        chosenEventForms = new boolean[chosenEvents.length][chosenForms.length];
+        for (int e = 0; e < chosenEvents.length; e++) {
+            int eventId = instrumentParser.getEventId(chosenEvents[e]);
+            for (int f = 0; f < chosenForms.length; f++) {
+                chosenEventForms[e][f] = eventId >= 0 && formIds[f] >= 0 && eventFormMatrix[eventId][formIds[f]];
             }
         }
-        results.put("value", null);
-        results.put("field", null);
-        return results;
     }
 
     /**
-     * Finds the Excel value of a given variable considering repeating rows.
+     * Convert every patient with the given per-patient conversion.
+     * <p>
+     * If the OutputSink can't fork, or in debug mode so that the debug file
+     * stays in order, the patients are converted one after another straight
+     * into the OutputSink. Otherwise every patient is converted into its own
+     * forked sink on a thread pool, and the forked sinks are joined back
+     * in the order of the patientIDs. Only a limited number of patients are
+     * converted ahead of the next one to be joined, so that the memory used
+     * by the forked sinks stays bounded.
+     * <p>
+     * If a patient fails to convert, the conversion stops with its exception
+     * either way, and the patients after it are never converted.
      *
-     * @param variable The variable to find
-     * @param sheetToFieldToVariable Contains the FieldToVariable mapping.
-     * @param patientToSheets Contains Excel file data.
-     * @param patientID The current patient ID.
-     * @return A HashMap containing the visited field and the value found.
+     * @param converter The per-patient conversion, I.e: (patientID, sink)
+     * @throws CancellationException If interrupted while converting in
+     * parallel, with the interrupt status kept.
      */
-    public ArrayList<String> fieldFinderRepeatingRows(String variable, LinkedHashMap<String, LinkedHashMap> sheetToFieldToVariable,
-            LinkedHashMap<String, LinkedHashMap> patientToSheets, String patientID) {
-        ArrayList<String> values;
-
-        // Iterate through the sheets
-        for (String sheet : sheetToFieldToVariable.keySet()) {
-            LinkedHashMap<String, String> fieldToVariable = sheetToFieldToVariable.get(sheet);
-            // Iterate through the fields of the sheet
-            for (String field : fieldToVariable.keySet()) {
-                // If the field corresponds to the given variable and hasn't been previously visited
-                if (fieldToVariable.get(field).equals(variable)) {
-                    LinkedHashMap<String, LinkedHashMap> excelSheetToFields = patientToSheets.get(patientID);
-                    LinkedHashMap<String, ArrayList> excelFieldToVariables = excelSheetToFields.get(sheet);
-                    // If this field's value is not null, return it
-                    if (excelFieldToVariables != null) {
-                        values = new ArrayList<>();
-                        if (excelFieldToVariables.get(field) != null) {
-                            values = excelFieldToVariables.get(field);
-                        }
-                        debugReporter.writeLn("Corresponding field found on sheet: " + sheet + ", field: " + field + ", values: " + values);
-                        return values;
-                    }
+    private void convertPatients(BiConsumer<String, OutputSink> converter) {
+        ArrayList<String> patientIDs = new ArrayList<>();
+        for (String patientID : patientToSheets.keySet()) {
+            if (patientFilter == null || patientFilter.test(patientID)) {
+                patientIDs.add(patientID);
+            }
+        }
+
+        if (parallelism <= 1 || MainSceneController.DEBUG || !sink.canFork()) {
+            for (String patientID : patientIDs) {
+                converter.accept(patientID, sink);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        ArrayDeque<Future<OutputSink>> convertedPatients = new ArrayDeque<>();
+        int maxInFlight = parallelism * 4;
+        try {
+            for (String patientID : patientIDs) {
+                // Wait for the oldest patient before converting more of them
+                if (convertedPatients.size() >= maxInFlight) {
+                    sink.join(convertedPatients.poll().get());
                 }
+                convertedPatients.add(executor.submit(() -> {
+                    OutputSink subjectSink = sink.fork();
+                    converter.accept(patientID, subjectSink);
+                    return subjectSink;
+                }));
+            }
+            while (!convertedPatients.isEmpty()) {
+                sink.join(convertedPatients.poll().get());
             }
+        } catch (InterruptedException ex) {
+            // Keep the interrupt for the caller, the document is missing patients
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while converting patients.");
+        } catch (ExecutionException ex) {
+            // Fail with the patient's own exception, like the sequential conversion
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
         }
-        return new ArrayList<>();
+    }
+
+    /**
+     * @param parallelism The number of threads to convert patients with, 1
+     * converts them sequentially.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Only convert the data of some patients. The GUI doesn't set a filter,
+     * so it always converts every patient.
+     *
+     * @param patientFilter Tests the patientIDs to convert, I.e: a Set's
+     * contains method. Null to convert every patient parsed by the
+     * ExcelParser.
+     */
+    public void setPatientFilter(Predicate<String> patientFilter) {
+        this.patientFilter = patientFilter;
     }
 }
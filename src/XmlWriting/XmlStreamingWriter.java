@@ -0,0 +1,317 @@
+package XmlWriting;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * <h1>Streaming ODM XML file writer.</h1>
+ * <p>
+ * Writes the same ODM XML file as {@link XmlWriter XmlWriter}, but through an
+ * XMLStreamWriter, so every element reaches the file as soon as it is created
+ * instead of the whole document being kept in memory until it is saved.
+ * <p>
+ * As elements can't be revisited once written, an element is closed as soon
+ * as an element of the same or a higher level is created. I.e: creating a
+ * FormData element closes the previous FormData and its ItemGroupData.
+ *
+ * @author James Conway
+ * @since 2018-07-18
+ */
+public class XmlStreamingWriter implements OutputSink {
+
+    private static final String ODM_NAMESPACE = "http://www.cdisc.org/ns/odm/v1.3";
+    private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+    private static final String REDCAP_NAMESPACE = "https://projectredcap.org";
+
+    /**
+     * The depth of every element, the number of elements still open once it
+     * has been started.
+     */
+    private static final int CLINICAL_DATA = 2, SUBJECT_DATA = 3, STUDY_EVENT_DATA = 4, FORM_DATA = 5;
+
+    private File xmlFile;
+    private boolean indent;
+    private Writer fileWriter;
+    private XMLStreamWriter writer;
+
+    /**
+     * The number of currently open elements.
+     */
+    private int depth;
+    /**
+     * Whether the last written element was a start tag, so that empty
+     * elements are closed on the same line.
+     */
+    private boolean openedLast;
+    /**
+     * Set once writing failed, after which nothing else is written.
+     */
+    private boolean failed;
+
+    /**
+     * @param xmlFile The file to be written to.
+     * @param indent Whether to indent the elements by 2 spaces per level.
+     */
+    public XmlStreamingWriter(File xmlFile, boolean indent) {
+        this.xmlFile = xmlFile;
+        this.indent = indent;
+    }
+
+    @Override
+    public void createDocument(Set<String> repeatingEvents, Set<String> repeatingForms) {
+        try {
+            fileWriter = new AttributeEscapingWriter(new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(xmlFile), StandardCharsets.UTF_8)));
+            writer = XMLOutputFactory.newInstance().createXMLStreamWriter(fileWriter);
+            writer.writeStartDocument("UTF-8", "1.0");
+
+            // Create the root Element with all the default Attributes
+            startElement("ODM");
+            writer.setDefaultNamespace(ODM_NAMESPACE);
+            writer.writeDefaultNamespace(ODM_NAMESPACE);
+            writer.writeNamespace("ds", "http://www.w3.org/2000/09/xmldsig#");
+            writer.writeNamespace("xsi", XSI_NAMESPACE);
+            writer.writeNamespace("redcap", REDCAP_NAMESPACE);
+            writer.writeAttribute("xsi", XSI_NAMESPACE, "schemaLocation", "http://www.cdisc.org/ns/odm/v1.3 schema/odm/ODM1-3-1.xsd");
+            writer.writeAttribute("ODMVersion", "1.3.1");
+            writer.writeAttribute("FileOID", "000-00-0000");
+            writer.writeAttribute("FileType", "Snapshot");
+            writer.writeAttribute("Description", "PMT");
+            writer.writeAttribute("AsOfDateTime", "#");
+            writer.writeAttribute("CreationDateTime", "#");
+            writer.writeAttribute("SourceSystem", "REDCap");
+            writer.writeAttribute("SourceSystemVersion", "8.4.2");
+
+            // Create the ClinicalData element
+            startElement("ClinicalData");
+            writer.writeAttribute("StudyOID", "Project.PMT");
+        } catch (IOException ex) {
+            reportException("IOException: ", ex);
+        } catch (XMLStreamException ex) {
+            reportException("XMLStreamException: ", ex);
+        }
+    }
+
+    @Override
+    public void createSubjectData(String patientID) {
+        if (failed) {
+            return;
+        }
+        try {
+            closeElements(CLINICAL_DATA);
+            startElement("SubjectData");
+            writer.writeAttribute("SubjectKey", patientID);
+        } catch (XMLStreamException ex) {
+            reportException("XMLStreamException: ", ex);
+        }
+    }
+
+    @Override
+    public void createStudyEventData(String event, int repeatKey) {
+        if (failed) {
+            return;
+        }
+        try {
+            closeElements(SUBJECT_DATA);
+            startElement("StudyEventData");
+            writer.writeAttribute("StudyEventOID", "Event." + event);
+            writer.writeAttribute("StudyEventRepeatKey", String.valueOf(repeatKey));
+            writer.writeAttribute("redcap", REDCAP_NAMESPACE, "UniqueEventName", event);
+        } catch (XMLStreamException ex) {
+            reportException("XMLStreamException: ", ex);
+        }
+    }
+
+    @Override
+    public void createFormData(String form, int repeatKey) {
+        if (failed) {
+            return;
+        }
+        try {
+            closeElements(STUDY_EVENT_DATA);
+            startElement("FormData");
+            writer.writeAttribute("FormOID", "Form." + form);
+            writer.writeAttribute("FormRepeatKey", String.valueOf(repeatKey));
+        } catch (XMLStreamException ex) {
+            reportException("XMLStreamException: ", ex);
+        }
+    }
+
+    @Override
+    public void createItemData(String variable, String form, boolean createGroupData, String value) {
+        if (failed) {
+            return;
+        }
+        try {
+            // If a new ItemGroupData element needs to be created to encase the following ItemData elements
+            // then close the previous one and start it
+            if (createGroupData) {
+                closeElements(FORM_DATA);
+                startElement("ItemGroupData");
+                writer.writeAttribute("ItemGroupOID", form + "." + variable);
+                writer.writeAttribute("ItemGroupRepeatKey", "1");
+            }
+            newLine(depth);
+            writer.writeEmptyElement("ItemData");
+            writer.writeAttribute("ItemOID", variable);
+            writer.writeAttribute("Value", value != null ? value : "");
+            openedLast = false;
+        } catch (XMLStreamException ex) {
+            reportException("XMLStreamException: ", ex);
+        }
+    }
+
+    @Override
+    public void saveDocument() {
+        try {
+            if (failed) {
+                return;
+            }
+            closeElements(0);
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException ex) {
+            reportException("XMLStreamException: ", ex);
+        } finally {
+            try {
+                if (fileWriter != null) {
+                    fileWriter.close();
+                }
+            } catch (IOException ex) {
+                reportException("IOException: ", ex);
+            }
+        }
+    }
+
+    /**
+     * @return False, the elements are written to a single XMLStreamWriter.
+     */
+    @Override
+    public boolean canFork() {
+        return false;
+    }
+
+    @Override
+    public OutputSink fork() {
+        throw new UnsupportedOperationException("XmlStreamingWriter can't fork.");
+    }
+
+    @Override
+    public void join(OutputSink subjectSink) {
+        throw new UnsupportedOperationException("XmlStreamingWriter can't fork.");
+    }
+
+    private void startElement(String name) throws XMLStreamException {
+        newLine(depth);
+        writer.writeStartElement(name);
+        depth++;
+        openedLast = true;
+    }
+
+    /**
+     * Close the open elements until only the given number of them is left.
+     *
+     * @param level The number of elements to keep open.
+     */
+    private void closeElements(int level) throws XMLStreamException {
+        while (depth > level) {
+            depth--;
+            if (!openedLast) {
+                newLine(depth);
+            }
+            writer.writeEndElement();
+            openedLast = false;
+        }
+    }
+
+    private void newLine(int level) throws XMLStreamException {
+        if (indent) {
+            writer.writeCharacters(System.lineSeparator());
+            for (int i = 0; i < level; i++) {
+                writer.writeCharacters("  ");
+            }
+        }
+    }
+
+    private void reportException(String type, Exception ex) {
+        if (!failed) {
+            failed = true;
+            Alert alert = new Alert(Alert.AlertType.ERROR, type + ex.getLocalizedMessage(), ButtonType.OK);
+            alert.showAndWait();
+        }
+        Logger.getLogger(XmlStreamingWriter.class.getName()).log(Level.SEVERE, null, ex);
+    }
+
+    /**
+     * XMLStreamWriter leaves line breaks and tabs of attribute values as they
+     * are, which XML parsers then read back as spaces. This writer turns them
+     * into character references inside attribute values, as the Transformer
+     * of {@link XmlWriter XmlWriter} does, so multi-line values survive.
+     */
+    private static class AttributeEscapingWriter extends FilterWriter {
+
+        private boolean inTag, inValue;
+
+        private AttributeEscapingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (inValue) {
+                switch (c) {
+                    case '\n':
+                        out.write("&#10;");
+                        return;
+                    case '\r':
+                        out.write("&#13;");
+                        return;
+                    case '\t':
+                        out.write("&#9;");
+                        return;
+                    case '"':
+                        inValue = false;
+                        break;
+                    default:
+                        break;
+                }
+            } else if (c == '<') {
+                inTag = true;
+            } else if (c == '>') {
+                inTag = false;
+            } else if (c == '"' && inTag) {
+                // Quotes within values are always written as &quot;
+                inValue = true;
+            }
+            out.write(c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(str.charAt(i));
+            }
+        }
+    }
+}
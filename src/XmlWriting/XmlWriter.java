@@ -1,6 +1,7 @@
 package XmlWriting;
 
 import java.io.File;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.scene.control.Alert;
@@ -28,7 +29,7 @@ import org.w3c.dom.Element;
  * @author James Conway
  * @since 2018-07-18
  */
-public class XmlWriter {
+public class XmlWriter implements OutputSink {
 
     private Document document;
     private File xmlFile;
@@ -36,7 +37,7 @@ public class XmlWriter {
     /**
      * Previous XML element to append data to.
      */
-    private Element clinicalData, subjectData, itemGroupData, itemData;
+    private Element clinicalData, subjectData, studyEventData, formData, itemGroupData, itemData;
 
     /**
      * Get the XML file to write to and create a DocumentBuilder to write to
@@ -61,7 +62,8 @@ public class XmlWriter {
     /**
      * Create an "ODM" root element and append a "ClinicalData" element to it.
      */
-    public void createDocument() {
+    @Override
+    public void createDocument(Set<String> repeatingEvents, Set<String> repeatingForms) {
         // Create the root Element with all the default Attributes and append it to the file
         Element rootElement = document.createElement("ODM");
         rootElement.setAttribute("xmlns", "http://www.cdisc.org/ns/odm/v1.3");
@@ -89,12 +91,12 @@ public class XmlWriter {
      * Create a "SubjectData" element and assign the patientID to it.
      * @param patientID 
      */
-    public Element createSubjectData(String patientID) {
+    @Override
+    public void createSubjectData(String patientID) {
         // Create the SubjectData element and append it to the file
         subjectData = document.createElement("SubjectData");
         subjectData.setAttribute("SubjectKey", patientID);
         clinicalData.appendChild(subjectData);
-        return subjectData;
     }
 
     /**
@@ -102,14 +104,14 @@ public class XmlWriter {
      * @param event 
      * @param repeatKey 
      */
-    public Element createStudyEventData(String event, int repeatKey, Element subjectData) {
+    @Override
+    public void createStudyEventData(String event, int repeatKey) {
         // Create the StudyEventData element and append it to the file
-        Element studyEventData = document.createElement("StudyEventData");
+        studyEventData = document.createElement("StudyEventData");
         studyEventData.setAttribute("StudyEventOID", "Event." + event);
         studyEventData.setAttribute("StudyEventRepeatKey", String.valueOf(repeatKey));
         studyEventData.setAttribute("redcap:UniqueEventName", event);
         subjectData.appendChild(studyEventData);
-        return studyEventData;
     }
 
     /**
@@ -117,13 +119,13 @@ public class XmlWriter {
      * @param form
      * @param repeatKey 
      */
-    public Element createFormData(String form, int repeatKey, Element studyEventData) {
+    @Override
+    public void createFormData(String form, int repeatKey) {
         // Create the FormData element with its repeat key and append it to the file
-        Element formData = document.createElement("FormData");
+        formData = document.createElement("FormData");
         formData.setAttribute("FormOID", "Form." + form);
         formData.setAttribute("FormRepeatKey", String.valueOf(repeatKey));
         studyEventData.appendChild(formData);
-        return formData;
     }
 
     /**
@@ -135,7 +137,8 @@ public class XmlWriter {
      * @param createGroupData
      * @param value 
      */
-    public void createItemData(String variable, String form, boolean createGroupData, String value, Element formData) {
+    @Override
+    public void createItemData(String variable, String form, boolean createGroupData, String value) {
         // If a new ItemGroupData element needs to be created to encase the following ItemData elements
         // then create one and append it
         if (createGroupData) {
@@ -158,6 +161,7 @@ public class XmlWriter {
     /**
      * Save the XML file.
      */
+    @Override
     public void saveDocument() {
         // Write the document to an XML File
         try {
@@ -178,4 +182,22 @@ public class XmlWriter {
             Logger.getLogger(XmlWriter.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+
+    /**
+     * @return False, the whole document is built in a single DOM tree.
+     */
+    @Override
+    public boolean canFork() {
+        return false;
+    }
+
+    @Override
+    public OutputSink fork() {
+        throw new UnsupportedOperationException("XmlWriter can't fork.");
+    }
+
+    @Override
+    public void join(OutputSink subjectSink) {
+        throw new UnsupportedOperationException("XmlWriter can't fork.");
+    }
 }
@@ -0,0 +1,142 @@
+package XlsxParsing;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.SAXHelper;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ * <h1>Tests of the XlsxSheetHandler.</h1>
+ * <p>
+ * Streams small sheets written the way Excel writes a formula filled down a
+ * column, and checks that every cell gives the formula that
+ * XSSFCell.getCellFormula() gives for it.
+ *
+ * @author James Conway
+ * @since 2018-07-21
+ */
+public class XlsxSheetHandlerTest {
+
+    private static final String WORKBOOK
+            = "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+            + "<sheets><sheet name=\"Sheet1\" sheetId=\"1\"/><sheet name=\"My Sheet\" sheetId=\"2\"/></sheets>"
+            + "<definedNames><definedName name=\"Rate\">'My Sheet'!$A$1</definedName></definedNames>"
+            + "</workbook>";
+
+    private static final String HEADER = "<row r=\"1\">" + text("A1", "n") + text("B1", "f") + "</row>";
+
+    /**
+     * Every cell of a filled-down formula gets the formula of the first cell,
+     * shifted by its distance from it, rather than its cached value.
+     */
+    @Test
+    public void shiftSharedFormulas() throws Exception {
+        List<List<String>> rows = read(null, HEADER
+                + "<row r=\"2\">" + number("A2", 1)
+                + "<c r=\"B2\"><f t=\"shared\" ref=\"B2:B4\" si=\"0\">A2 * 2</f><v>2</v></c>"
+                + "<c r=\"C2\"><f t=\"shared\" ref=\"C2:C4\" si=\"1\">$A$2+'My Sheet'!A2</f><v>2</v></c>"
+                + "<c r=\"D2\"><f t=\"shared\" ref=\"D2:D4\" si=\"2\">Rate*SUM(A$2:A2)</f><v>1</v></c></row>"
+                + "<row r=\"3\">" + number("A3", 2)
+                + "<c r=\"B3\"><f t=\"shared\" si=\"0\"/><v>4</v></c>"
+                + "<c r=\"C3\"><f t=\"shared\" si=\"1\"/><v>3</v></c>"
+                + "<c r=\"D3\"><f t=\"shared\" si=\"2\"/><v>3</v></c></row>"
+                + "<row r=\"4\">" + number("A4", 3)
+                + "<c r=\"B4\"><f t=\"shared\" si=\"0\"/><v>6</v></c>"
+                + "<c r=\"C4\"><f t=\"shared\" si=\"1\"/><v>4</v></c>"
+                + "<c r=\"D4\"><f t=\"shared\" si=\"2\"/><v>6</v></c></row>");
+
+        // POI's SharedFormula drops the sheet of references to other sheets
+        // when it shifts them, XSSFCell.getCellFormula() does the same
+        assertEquals(Arrays.asList("1", "A2*2", "$A$2+A2", "Rate*SUM(A$2:A2)"), rows.get(1));
+        assertEquals(Arrays.asList("2", "A3*2", "$A$2+A3", "Rate*SUM(A$2:A3)"), rows.get(2));
+        assertEquals(Arrays.asList("3", "A4*2", "$A$2+A4", "Rate*SUM(A$2:A4)"), rows.get(3));
+    }
+
+    /**
+     * The first cell of a shared formula is needed by the rest of its range
+     * even if its own row is filtered out.
+     */
+    @Test
+    public void shiftSharedFormulasOfFilteredRows() throws Exception {
+        List<List<String>> rows = read(patientID -> !patientID.equals("1"), HEADER
+                + "<row r=\"2\">" + number("A2", 1)
+                + "<c r=\"B2\"><f t=\"shared\" ref=\"B2:B3\" si=\"0\">A2*2</f><v>2</v></c></row>"
+                + "<row r=\"3\">" + number("A3", 2)
+                + "<c r=\"B3\"><f t=\"shared\" si=\"0\"/><v>4</v></c></row>");
+
+        assertEquals(2, rows.size());
+        assertEquals(Arrays.asList("2", "A3*2"), rows.get(1));
+    }
+
+    /**
+     * Every cell of an array formula gets the formula of the array.
+     */
+    @Test
+    public void repeatArrayFormulas() throws Exception {
+        List<List<String>> rows = read(null, HEADER
+                + "<row r=\"2\">" + number("A2", 1)
+                + "<c r=\"B2\"><f t=\"array\" ref=\"B2:B3\">A2:A3*2</f><v>2</v></c></row>"
+                + "<row r=\"3\">" + number("A3", 2) + number("B3", 4) + "</row>");
+
+        assertEquals(Arrays.asList("1", "A2:A3*2"), rows.get(1));
+        assertEquals(Arrays.asList("2", "A2:A3*2"), rows.get(2));
+    }
+
+    /**
+     * A shared formula that uses a table can't be parsed without the tables
+     * of the workbook, so only its first cell gives the formula, as written.
+     */
+    @Test
+    public void keepCachedValuesOfUnparsableFormulas() throws Exception {
+        List<List<String>> rows = read(null, HEADER
+                + "<row r=\"2\">" + number("A2", 1)
+                + "<c r=\"B2\"><f t=\"shared\" ref=\"B2:B3\" si=\"0\">SUM(Table1[n])+A2</f><v>4</v></c></row>"
+                + "<row r=\"3\">" + number("A3", 2)
+                + "<c r=\"B3\"><f t=\"shared\" si=\"0\"/><v>5</v></c></row>");
+
+        assertEquals(Arrays.asList("1", "SUM(Table1[n])+A2"), rows.get(1));
+        assertEquals(Arrays.asList("2", "5"), rows.get(2));
+    }
+
+    /**
+     * Stream the rows of a sheet of the {@link #WORKBOOK WORKBOOK}.
+     *
+     * @param rowFilter Tests the first cell of the rows after the first, null
+     * to keep every row.
+     * @param sheetData The rows of the sheet.
+     * @return The cell values of the kept rows.
+     */
+    private static List<List<String>> read(Predicate<String> rowFilter, String sheetData) throws Exception {
+        XlsxFormulaBook formulaBook = new XlsxFormulaBook();
+        formulaBook.read(new ByteArrayInputStream(WORKBOOK.getBytes(StandardCharsets.UTF_8)));
+        List<List<String>> rows = new ArrayList<>();
+        XlsxSheetHandler sheetHandler = new XlsxSheetHandler(null, new XlsxStyleTable(), new DataFormatter(),
+                false, rows::add, null);
+        sheetHandler.setFormulaBook(formulaBook, 0);
+        sheetHandler.setRowFilter(rowFilter);
+
+        XMLReader sheetParser = SAXHelper.newXMLReader();
+        sheetParser.setContentHandler(sheetHandler);
+        sheetParser.parse(new InputSource(new StringReader(
+                "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>"
+                + sheetData + "</sheetData></worksheet>")));
+        return rows;
+    }
+
+    private static String text(String reference, String text) {
+        return "<c r=\"" + reference + "\" t=\"inlineStr\"><is><t>" + text + "</t></is></c>";
+    }
+
+    private static String number(String reference, int number) {
+        return "<c r=\"" + reference + "\"><v>" + number + "</v></c>";
+    }
+}
@@ -0,0 +1,310 @@
+package XmlWriting;
+
+import CsvParsing.DataDictionaryParser;
+import CsvParsing.InstrumentDesigParser;
+import CsvParsing.ParseCache;
+import GUI.FieldCustomizerController;
+import GUI.Utils.MenuTracker;
+import XlsxParsing.ExcelParser;
+import java.io.File;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * <h1>Tests of the XmlConverter.</h1>
+ * <p>
+ * Converts a small Excel file with every conversion mode, and compares the
+ * ODM XML file with the one the XmlConverter wrote before all the modes ran
+ * through the same engine. I.e: columns.xml, form-rows.xml and
+ * event-rows.xml, all converted with default values.
+ * <p>
+ * The files are compared element by element, with the attributes of an
+ * element in any order and without the whitespace between elements, as every
+ * writer indents in its own way.
+ *
+ * @author James Conway
+ * @since 2018-07-20
+ */
+public class XmlConverterTest {
+
+    private static final String COLUMNS = "columns", FORM_ROWS = "form-rows", EVENT_ROWS = "event-rows";
+
+    /**
+     * The fields chosen on the GUI, in the order of its ListViews.
+     * <p>
+     * I.e: {sheet, field, event, form, variable}
+     */
+    private static final String[][] CHOICES = {
+        {"Sheet0", "f0_1", "ev1", "a", "a1"},
+        {"Sheet0", "f0_2", "ev1", "a", "a2"},
+        {"Sheet0", "f0_3", "ev1", "b", "b1"},
+        {"Sheet1", "f1_1", "ev1", "b", "b2___2"},
+        {"Sheet1", "f1_2", "ev1", "c", "c1"},
+        {"Sheet1", "f1_3", "ev1", "c", "c1"},
+        {"Sheet2", "f2_1", "ev2", "c", "c2"},
+        {"Sheet2", "f2_2", "ev2", "a", "a1"},
+        {"Sheet2", "f2_3", "ev2", "d", "d1"},
+        {"Sheet3", "f3_1", "ev2", "d", "d2"},
+        {"Sheet3", "f3_2", "ev2", "c", "c2"}};
+
+    private static InstrumentDesigParser instrumentParser;
+    private static DataDictionaryParser dictionaryParser;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // Every test reads the Excel and CSV files themselves, not a
+        // snapshot or cache of them, and writes nothing to the home directory
+        ExcelParser.setSnapshotsEnabled(false);
+        ParseCache.setEnabled(false);
+        instrumentParser = new InstrumentDesigParser(resource("instruments.csv"));
+        instrumentParser.parse();
+        dictionaryParser = new DataDictionaryParser(resource("dictionary.csv"));
+        dictionaryParser.parse();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        ExcelParser.setSnapshotsEnabled(true);
+        ParseCache.setEnabled(true);
+    }
+
+    @Test
+    public void convertRepeatingColumns() throws Exception {
+        assertSameOdm(COLUMNS, convert(COLUMNS, 1, xmlFile -> new OdmByteWriter(xmlFile, true)));
+    }
+
+    @Test
+    public void convertRepeatingRowsOfForms() throws Exception {
+        assertSameOdm(FORM_ROWS, convert(FORM_ROWS, 1, xmlFile -> new OdmByteWriter(xmlFile, true)));
+    }
+
+    @Test
+    public void convertRepeatingRowsOfEvents() throws Exception {
+        assertSameOdm(EVENT_ROWS, convert(EVENT_ROWS, 1, xmlFile -> new OdmByteWriter(xmlFile, true)));
+    }
+
+    /**
+     * Patients converted on several threads must still be joined in the
+     * order of their patientIDs.
+     */
+    @Test
+    public void convertInParallel() throws Exception {
+        for (String mode : new String[]{COLUMNS, FORM_ROWS, EVENT_ROWS}) {
+            assertSameOdm(mode, convert(mode, 4, xmlFile -> new OdmByteWriter(xmlFile, true)));
+        }
+    }
+
+    /**
+     * Every writer must write the same ODM XML, whether it builds the whole
+     * document in memory or streams it.
+     */
+    @Test
+    public void convertWithEveryWriter() throws Exception {
+        for (String mode : new String[]{COLUMNS, FORM_ROWS, EVENT_ROWS}) {
+            assertSameOdm(mode, convert(mode, 4, xmlFile -> new XmlWriter(xmlFile)));
+            assertSameOdm(mode, convert(mode, 4, xmlFile -> new XmlStreamingWriter(xmlFile, true)));
+            assertSameOdm(mode, convert(mode, 4, xmlFile -> new OdmByteWriter(xmlFile, false)));
+        }
+    }
+
+    /**
+     * A patient that fails to convert must stop the conversion, in parallel
+     * as well as sequentially, and the document must not be saved.
+     */
+    @Test
+    public void stopAtFailedPatient() throws Exception {
+        for (int parallelism : new int[]{1, 4}) {
+            FailingSink failingSink = new FailingSink("P02");
+            try {
+                convert(COLUMNS, parallelism, xmlFile -> failingSink);
+                fail("The conversion of P02 should have failed");
+            } catch (IllegalStateException ex) {
+                assertEquals("P02", ex.getMessage());
+            }
+            assertFalse(failingSink.saved);
+        }
+    }
+
+    /**
+     * Parse the Excel file and convert it like the GUI does.
+     *
+     * @param mode The conversion mode, I.e: COLUMNS, FORM_ROWS or EVENT_ROWS.
+     * @param parallelism The number of threads to convert patients with.
+     * @param writer Creates the writer of the XML file.
+     * @return The written XML file.
+     */
+    private File convert(String mode, int parallelism, Function<File, OutputSink> writer) throws Exception {
+        File xmlFile = folder.newFile();
+        MenuTracker menuTracker = chooseFields();
+        ExcelParser excelParser = new ExcelParser(resource("patients.xlsx"));
+        excelParser.parseHeaders();
+        if (mode.equals(COLUMNS)) {
+            excelParser.parseRepeatingColumns(menuTracker.getSelectedSheetToFields());
+        } else {
+            excelParser.parseRepeatingRows(menuTracker.getSelectedSheetToFields());
+        }
+
+        XmlConverter xmlConverter = new XmlConverter(menuTracker, instrumentParser, dictionaryParser,
+                excelParser, xmlFile, true, writer.apply(xmlFile));
+        xmlConverter.setParallelism(parallelism);
+        if (mode.equals(COLUMNS)) {
+            xmlConverter.convertRepeatingColumns();
+        } else {
+            xmlConverter.convertRepeatingRows(mode.equals(FORM_ROWS));
+        }
+        return xmlFile;
+    }
+
+    /**
+     * @return A MenuTracker filled with the {@link #CHOICES CHOICES}, as the
+     * FieldCustomizerController fills it from its ListViews.
+     */
+    private static MenuTracker chooseFields() {
+        MenuTracker menuTracker = new MenuTracker();
+        ObservableList<String> placeholders = FXCollections.observableArrayList();
+        ObservableList<String> events = FXCollections.observableArrayList();
+        ObservableList<String> forms = FXCollections.observableArrayList();
+        ObservableList<String> variables = FXCollections.observableArrayList();
+        String sheet = null;
+        for (String[] choice : CHOICES) {
+            if (!choice[0].equals(sheet)) {
+                sheet = choice[0];
+                placeholders.add(FieldCustomizerController.EVENT_SHEET_PLACEHOLDER + sheet);
+                events.add(FieldCustomizerController.EVENT_SHEET_PLACEHOLDER + sheet);
+                forms.add(FieldCustomizerController.FORM_SHEET_PLACEHOLDER + sheet);
+                variables.add(sheet);
+            }
+            menuTracker.fieldChecked(choice[0], choice[1], placeholders.size());
+            placeholders.add(FieldCustomizerController.EVENT_FIELD_PLACEHOLDER + choice[1]);
+            events.add(choice[2]);
+            forms.add(choice[3]);
+            variables.add(choice[4]);
+        }
+        menuTracker.collectIndexToDefaultItem(placeholders);
+        menuTracker.collectEventListData(events);
+        menuTracker.collectFormListData(forms);
+        menuTracker.collectVariableListData(variables);
+        return menuTracker;
+    }
+
+    /**
+     * Sink that fails to create the SubjectData of a patient, and records
+     * whether the document was saved.
+     */
+    private static class FailingSink implements OutputSink {
+
+        private final String failingPatientID;
+        private boolean saved;
+
+        private FailingSink(String failingPatientID) {
+            this.failingPatientID = failingPatientID;
+        }
+
+        @Override
+        public void createDocument(Set<String> repeatingEvents, Set<String> repeatingForms) {
+        }
+
+        @Override
+        public void createSubjectData(String patientID) {
+            if (patientID.equals(failingPatientID)) {
+                throw new IllegalStateException(patientID);
+            }
+        }
+
+        @Override
+        public void createStudyEventData(String event, int repeatKey) {
+        }
+
+        @Override
+        public void createFormData(String form, int repeatKey) {
+        }
+
+        @Override
+        public void createItemData(String variable, String form, boolean createGroupData, String value) {
+        }
+
+        @Override
+        public void saveDocument() {
+            saved = true;
+        }
+
+        @Override
+        public boolean canFork() {
+            return true;
+        }
+
+        @Override
+        public OutputSink fork() {
+            return new FailingSink(failingPatientID);
+        }
+
+        @Override
+        public void join(OutputSink subjectSink) {
+        }
+    }
+
+    private static File resource(String name) throws Exception {
+        return new File(XmlConverterTest.class.getResource(name).toURI());
+    }
+
+    private static void assertSameOdm(String mode, File xmlFile) throws Exception {
+        assertEquals(mode, canonicalOdm(resource(mode + ".xml")), canonicalOdm(xmlFile));
+    }
+
+    /**
+     * @param xmlFile An XML file.
+     * @return Every element of the file on its own line, indented by its
+     * depth and with its attributes sorted by name.
+     */
+    private static String canonicalOdm(File xmlFile) throws Exception {
+        StringBuilder odm = new StringBuilder();
+        appendElement(DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(xmlFile).getDocumentElement(), 0, odm);
+        return odm.toString();
+    }
+
+    private static void appendElement(Element element, int depth, StringBuilder odm) {
+        for (int i = 0; i < depth; i++) {
+            odm.append("  ");
+        }
+        odm.append(element.getTagName());
+
+        // The namespace declarations are left out, they only have to be on
+        // some ancestor of the elements that use them
+        TreeMap<String, String> attributes = new TreeMap<>();
+        NamedNodeMap attributeNodes = element.getAttributes();
+        for (int i = 0; i < attributeNodes.getLength(); i++) {
+            Node attribute = attributeNodes.item(i);
+            if (!attribute.getNodeName().startsWith("xmlns")) {
+                attributes.put(attribute.getNodeName(), attribute.getNodeValue());
+            }
+        }
+        for (String name : attributes.keySet()) {
+            odm.append(' ').append(name).append("=\"").append(attributes.get(name)).append('"');
+        }
+        odm.append('\n');
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                appendElement((Element) child, depth + 1, odm);
+            }
+        }
+    }
+}